@@ -0,0 +1,108 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the attributes of server files on the proxy, so that existence and type probes are
+ * answered without a round trip. Entries live for a short time to live, and are dropped as
+ * soon as a lease break announces a change to their file. Paths found missing are cached too,
+ * with their own time to live, so that repeated probes for a missing file stay local.
+ *
+ * @author Zijie Huang
+ */
+public class AttributeCache {
+
+    /**
+     * The cached attributes of a file.
+     */
+    public static class Attributes {
+        private final boolean exists;
+        private final boolean directory;
+        private final long expiry;
+
+        private Attributes(boolean exists, boolean directory, long expiry) {
+            this.exists = exists;
+            this.directory = directory;
+            this.expiry = expiry;
+        }
+
+        public boolean isExist() {
+            return exists;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+    }
+
+    /**
+     * The time to live of the entries of existing and missing files, in nanoseconds.
+     */
+    private final long ttl;
+    private final long negativeTtl;
+
+    /**
+     * The cached attributes, keyed by path.
+     */
+    private final Map<String, Attributes> attributes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an AttributeCache.
+     *
+     * @param ttlMillis         How long the attributes of an existing file are kept, in milliseconds.
+     * @param negativeTtlMillis How long a missing file is remembered, in milliseconds.
+     */
+    public AttributeCache(long ttlMillis, long negativeTtlMillis) {
+        this.ttl = ttlMillis * 1_000_000;
+        this.negativeTtl = negativeTtlMillis * 1_000_000;
+    }
+
+    /**
+     * Looks up the attributes of a file.
+     *
+     * @param path The path of the file.
+     * @return The attributes, or null if they are not cached or have expired.
+     */
+    public Attributes lookup(String path) {
+        Attributes entry = attributes.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiry >= 0) {
+            attributes.remove(path, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records that a file exists.
+     *
+     * @param path      The path of the file.
+     * @param directory Whether the file is a directory.
+     */
+    public void putExisting(String path, boolean directory) {
+        if (ttl > 0) {
+            attributes.put(path, new Attributes(true, directory, System.nanoTime() + ttl));
+        }
+    }
+
+    /**
+     * Records that a file does not exist.
+     *
+     * @param path The path of the file.
+     */
+    public void putMissing(String path) {
+        if (negativeTtl > 0) {
+            attributes.put(path, new Attributes(false, false, System.nanoTime() + negativeTtl));
+        }
+    }
+
+    /**
+     * Drops the attributes of a file, once it is known to have changed.
+     *
+     * @param path The path of the file.
+     */
+    public void invalidate(String path) {
+        attributes.remove(path);
+    }
+}
@@ -2,9 +2,12 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -28,15 +31,34 @@ public class Cache {
     private int currentSize;
 
     /**
-     * The priority queue used to store cache files based on their LRU count and ref count.
+     * The unpinned cache files (ref count 0), ordered from least to most recently used.
+     * Only these files are candidates for eviction.
      */
-    private PriorityQueue<CacheFile> cacheFiles;
+    private LinkedHashMap<String, CacheFile> lruFiles;
+
+    /**
+     * The pinned cache files (ref count greater than 0), which are never evicted.
+     */
+    private Set<CacheFile> pinnedFiles;
 
     /**
      * The map used to store cache files based on their path.
      */
     private Map<String, CacheFile> cacheFileMap;
 
+    /**
+     * The latest cached version of each file that has not gone stale, by the path shared by all
+     * its versions.
+     */
+    private Map<String, CacheFile> latestFiles;
+
+    /**
+     * The bytes of small files also held in memory, and the most the memory tier may hold.
+     * The memory tier is disabled when its maximum size is 0.
+     */
+    private int memorySize;
+    private int maxMemorySize;
+
     /**
      * The read-write lock used for synchronization.
      */
@@ -52,8 +74,10 @@ public class Cache {
     public Cache(int size) {
         maxSize = size;
         currentSize = 0;
-        cacheFiles = new PriorityQueue<CacheFile>();
+        lruFiles = new LinkedHashMap<String, CacheFile>();
+        pinnedFiles = new HashSet<CacheFile>();
         cacheFileMap = new HashMap<String, CacheFile>();
+        latestFiles = new HashMap<String, CacheFile>();
         rwLock = new ReentrantReadWriteLock();
         readLock = rwLock.readLock();
         writeLock = rwLock.writeLock();
@@ -71,8 +95,16 @@ public class Cache {
         try {
             String path = cacheFile.getPath();
             currentSize += cacheFile.getSize();
-            cacheFiles.add(cacheFile);
-            cacheFileMap.put(path, cacheFile);
+            CacheFile replaced = cacheFileMap.put(path, cacheFile);
+            if (replaced != null && replaced != cacheFile) {
+                unindexLatest(replaced);
+            }
+            indexLatest(cacheFile);
+            if (cacheFile.getRefCount() > 0) {
+                pinnedFiles.add(cacheFile);
+            } else {
+                lruFiles.put(path, cacheFile);
+            }
             System.err.println("File is cached at: " + path + " with size: " + cacheFile.getSize());
             return true;
         } catch (Exception e) {
@@ -103,6 +135,189 @@ public class Cache {
         }
     }
 
+    /**
+     * Finds the latest version of a file held in the cache that has not gone stale.
+     *
+     * @param pathWithNoVersion The path shared by all the versions of the file.
+     * @return The latest cached version, or -1 if no version is cached.
+     */
+    public int getLatestVersion(String pathWithNoVersion) {
+        readLock.lock();
+        try {
+            CacheFile cacheFile = latestFiles.get(pathWithNoVersion);
+            return cacheFile == null || cacheFile.isStale() ? -1 : cacheFile.getVersion();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Looks up a CacheFile by its path and pins it by incrementing its reference count.
+     * The lookup and the pin happen atomically, so the file cannot be evicted in between.
+     *
+     * @param path The path of the file to acquire.
+     * @return The pinned CacheFile if found; null otherwise.
+     */
+    public CacheFile acquire(String path) {
+        writeLock.lock();
+        try {
+            CacheFile cacheFile = cacheFileMap.get(path);
+            if (cacheFile != null) {
+                incrementRefCount(cacheFile);
+            }
+            return cacheFile;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Error when acquiring file from cache");
+            return null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Installs a file that is about to be downloaded into the cache and pins it, so that other
+     * clients can open it while its chunks are still arriving. Space is accounted chunk by chunk
+     * with {@link #reserveChunk(CacheFile, int)} as they are downloaded. Older versions of the same
+     * file are marked as stale and cleared if unused. If the same version is already cached, the
+     * existing entry is pinned instead.
+     *
+     * @param cacheFile The CacheFile describing the version to be downloaded.
+     * @param pathWithNoVersion The path prefix shared by all the versions of the file.
+     * @return The pinned CacheFile now stored in the cache.
+     */
+    public CacheFile install(CacheFile cacheFile, String pathWithNoVersion) {
+        writeLock.lock();
+        try {
+            String path = cacheFile.getPath();
+            CacheFile existing = cacheFileMap.get(path);
+            if (existing != null) {
+                System.err.println("File is already cached at: " + path);
+                incrementRefCount(existing);
+                return existing;
+            }
+
+            setStaleFiles(pathWithNoVersion);
+            clearStaleFiles(pathWithNoVersion);
+            cacheFile.incrementRefCount();
+            cacheFileMap.put(path, cacheFile);
+            indexLatest(cacheFile);
+            pinnedFiles.add(cacheFile);
+            System.err.println("File is cached at: " + path + " with size: " + cacheFile.getSize());
+            return cacheFile;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a file whose download failed from the cache, even if it is pinned, and frees its space.
+     * Clients that still have the file open keep their handles, but new opens will download it again.
+     *
+     * @param cacheFile The CacheFile to discard.
+     */
+    public void discard(CacheFile cacheFile) {
+        writeLock.lock();
+        try {
+            String path = cacheFile.getPath();
+            if (cacheFileMap.get(path) == cacheFile) {
+                cacheFileMap.remove(path);
+                unindexLatest(cacheFile);
+                lruFiles.remove(path);
+                pinnedFiles.remove(cacheFile);
+                currentSize -= cacheFile.getResidentSize();
+                releaseMemory(cacheFile);
+                Files.deleteIfExists(Paths.get(path));
+                System.err.println("File " + path + " is discarded from cache");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Error when discarding file from cache");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reserves space for a chunk of a cached file that is about to be written, evicting LRU files
+     * if the cache is full. The chunk is accounted as resident in the file right away, so that
+     * discarding or evicting the file frees it even if the write has not finished yet.
+     *
+     * @param cacheFile The cached file the chunk belongs to.
+     * @param size The size of the chunk in bytes.
+     * @return true if the space was reserved; false if the file is no longer in the cache.
+     */
+    public boolean reserveChunk(CacheFile cacheFile, int size) {
+        writeLock.lock();
+        try {
+            if (cacheFileMap.get(cacheFile.getPath()) != cacheFile) {
+                return false;
+            }
+            if (isFull(size)) {
+                evict(size);
+            }
+            currentSize += size;
+            cacheFile.addResidentSize(size);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Error when reserving chunk space in cache");
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the content of a cached file in memory as well, so that it can be read without
+     * touching the disk, if the memory tier has room for it. The content is dropped from memory
+     * when the file leaves the cache.
+     *
+     * @param cacheFile The cached file.
+     * @param data The whole content of the file.
+     * @return true if the content is now held in memory; false otherwise.
+     */
+    public boolean keepInMemory(CacheFile cacheFile, byte[] data) {
+        writeLock.lock();
+        try {
+            if (cacheFileMap.get(cacheFile.getPath()) != cacheFile
+                || cacheFile.getMemoryData() != null
+                || memorySize + data.length > maxMemorySize) {
+                return false;
+            }
+            memorySize += data.length;
+            cacheFile.setMemoryData(data);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the most bytes the memory tier may hold; 0 disables it.
+     *
+     * @param maxMemorySize The maximum size of the memory tier in bytes.
+     */
+    public void setMaxMemorySize(int maxMemorySize) {
+        writeLock.lock();
+        try {
+            this.maxMemorySize = maxMemorySize;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the in-memory content of a file leaving the cache. Must be called with the write lock held.
+     */
+    private void releaseMemory(CacheFile cacheFile) {
+        byte[] data = cacheFile.getMemoryData();
+        if (data != null) {
+            memorySize -= data.length;
+            cacheFile.setMemoryData(null);
+        }
+    }
+
     /**
      * Returns the maximum size of the cache.
      *
@@ -132,25 +347,6 @@ public class Cache {
         return false;
     }
 
-        
-    /**
-     * Updates the LRU count for all cached files. This method is typically called after accessing a file
-     * to ensure the LRU policy is correctly applied.
-     */
-    public void updateLRU() {
-        writeLock.lock();
-        try {
-            for (CacheFile cacheFile : cacheFiles) {
-                cacheFile.incrementLruCount();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Error when updating LRU count of files in cache");
-        } finally {
-            writeLock.unlock();
-        }
-    }
-
     /**
      * Deletes a specified CacheFile from the cache, freeing up its space.
      *
@@ -161,10 +357,13 @@ public class Cache {
         try {
             if (cacheFile != null) {
                 String path = cacheFile.getPath();
-                cacheFiles.remove(cacheFile);
                 cacheFileMap.remove(path);
-                currentSize -= Files.size(Paths.get(path));
-                System.err.println("File" + path + " is deleted from cache with size: " + Files.size(Paths.get(path)));
+                unindexLatest(cacheFile);
+                lruFiles.remove(path);
+                pinnedFiles.remove(cacheFile);
+                currentSize -= cacheFile.getResidentSize();
+                releaseMemory(cacheFile);
+                System.err.println("File" + path + " is deleted from cache with size: " + cacheFile.getResidentSize());
                 Files.delete(Paths.get(path));
             } else {
                 System.err.println("File not found in cache");
@@ -198,13 +397,13 @@ public class Cache {
     }
     
     /**
-     * Resets the Least Recently Used (LRU) count of the specified cache file to zero.
+     * Marks the specified cache file as the most recently used one.
      * This method is thread-safe and acquires a write lock to ensure exclusive access.
      * 
-     * @param cacheFile The cache file whose LRU count is to be reset.
+     * @param cacheFile The cache file to be marked as most recently used.
      */
-    public void resetLRU(CacheFile cacheFile) {
-        modifyCacheFile(cacheFile, ModificationType.RESET_LRU_COUNT);
+    public void touch(CacheFile cacheFile) {
+        modifyCacheFile(cacheFile, ModificationType.TOUCH);
     }
 
     /**
@@ -259,7 +458,7 @@ public class Cache {
         try {
             /* collect all the files to delete */
             List<CacheFile> filesToDelete = new ArrayList<>();
-            for (CacheFile cacheFile : cacheFiles) {
+            for (CacheFile cacheFile : cacheFileMap.values()) {
                 if (cacheFile.getPath().startsWith(pathWithNoVersion) 
                 && cacheFile.getRefCount() == 0
                 && cacheFile.isStale()) {
@@ -289,9 +488,10 @@ public class Cache {
     public void setStaleFiles(String pathWithNoVersion) {
         writeLock.lock();
         try {
-            for (CacheFile cacheFile : cacheFiles) {
+            for (CacheFile cacheFile : cacheFileMap.values()) {
                 if (cacheFile.getPath().startsWith(pathWithNoVersion)) {
                     cacheFile.setStale(true);
+                    unindexLatest(cacheFile);
                 }
             }
         } catch (Exception e) {
@@ -302,6 +502,57 @@ public class Cache {
         }
     } 
 
+    /**
+     * Marks a single cache file as stale, so that it is no longer reported as the latest version
+     * of its file.
+     *
+     * @param cacheFile The cache file to mark as stale.
+     */
+    public void setStale(CacheFile cacheFile) {
+        writeLock.lock();
+        try {
+            cacheFile.setStale(true);
+            unindexLatest(cacheFile);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Records a cache file as the latest version of its file, unless it is stale or a later
+     * version is already cached. Must be called with the write lock held.
+     */
+    private void indexLatest(CacheFile cacheFile) {
+        String pathWithNoVersion = pathWithNoVersion(cacheFile);
+        if (pathWithNoVersion == null || cacheFile.isStale()) {
+            return;
+        }
+        CacheFile latest = latestFiles.get(pathWithNoVersion);
+        if (latest == null || latest.isStale() || latest.getVersion() <= cacheFile.getVersion()) {
+            latestFiles.put(pathWithNoVersion, cacheFile);
+        }
+    }
+
+    /**
+     * Forgets a cache file as the latest version of its file. Must be called with the write lock held.
+     */
+    private void unindexLatest(CacheFile cacheFile) {
+        String pathWithNoVersion = pathWithNoVersion(cacheFile);
+        if (pathWithNoVersion != null) {
+            latestFiles.remove(pathWithNoVersion, cacheFile);
+        }
+    }
+
+    /**
+     * Returns the path shared by all the versions of a cached file, or null if the file is not
+     * stored under a versioned path.
+     */
+    private static String pathWithNoVersion(CacheFile cacheFile) {
+        String path = cacheFile.getPath();
+        String suffix = "_v" + cacheFile.getVersion();
+        return path.endsWith(suffix) ? path.substring(0, path.length() - suffix.length()) : null;
+    }
+
     /**
      * Checks if adding a specified size to the cache would exceed its maximum capacity.
      * This method is thread-safe and can be called without acquiring a lock.
@@ -315,7 +566,7 @@ public class Cache {
 
     /**
      * Evicts files from the cache to make space for new entries.
-     * The method uses an eviction policy based on the reference count and LRU count of cache files.
+     * Unpinned files are evicted from the least recently used one onwards; pinned files are never evicted.
      * This method is thread-safe and acquires a write lock to ensure exclusive access.
      * 
      * @param size The size needed to be freed up in the cache.
@@ -325,12 +576,12 @@ public class Cache {
         try {
             System.err.println("currentSize: " + currentSize + " size: " + size + " maxSize: " + maxSize);
             while (currentSize + size > maxSize) {
-                CacheFile cacheFile = cacheFiles.poll();
-                if (cacheFile.getRefCount() == 0) {
-                    delete(cacheFile);
-                } else {
-                    cacheFiles.add(cacheFile);
+                Iterator<CacheFile> it = lruFiles.values().iterator();
+                if (!it.hasNext()) {
+                    System.err.println("No unpinned file left to evict");
+                    break;
                 }
+                delete(it.next());
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -353,34 +604,45 @@ public class Cache {
     /**
      * Modifies a cache file's properties based on the specified operation.
      * This private method is used internally to increment or decrement the reference count,
-     * or to reset the Least Recently Used (LRU) count of a cache file.
+     * or to mark a cache file as most recently used, keeping the LRU list and the pinned set in sync.
      * It ensures thread safety by acquiring a write lock before performing any modifications.
      *
      * @param cacheFile The cache file to be modified.
      * @param operation The modification operation to perform on the cache file. The operation
      *                  is defined by the {@link ModificationType} enum and can include incrementing
-     *                  or decrementing the reference count, or resetting the LRU count.
+     *                  or decrementing the reference count, or marking the file as most recently used.
      * @throws IllegalArgumentException if an unknown operation is passed.
      */
     private void modifyCacheFile(CacheFile cacheFile, ModificationType operation) {
         writeLock.lock();
         try {
             if (cacheFile != null) {
+                String path = cacheFile.getPath();
+                boolean isCached = cacheFileMap.get(path) == cacheFile;
                 switch (operation) {
                     case INCREMENT_REF_COUNT:
                         cacheFile.incrementRefCount();
+                        if (isCached && cacheFile.getRefCount() == 1) {
+                            lruFiles.remove(path);
+                            pinnedFiles.add(cacheFile);
+                        }
                         break;
                     case DECREMENT_REF_COUNT:
                         cacheFile.decrementRefCount();
+                        if (isCached && cacheFile.getRefCount() == 0) {
+                            pinnedFiles.remove(cacheFile);
+                            lruFiles.put(path, cacheFile);
+                        }
                         break;
-                    case RESET_LRU_COUNT:
-                        cacheFile.setLruCount(0);
+                    case TOUCH:
+                        if (isCached && cacheFile.getRefCount() == 0) {
+                            lruFiles.remove(path);
+                            lruFiles.put(path, cacheFile);
+                        }
                         break;
                     default:
                         throw new IllegalArgumentException("Unknown operation: " + operation);
                 }
-                cacheFiles.remove(cacheFile);
-                cacheFiles.add(cacheFile);
             } else {
                 System.err.println("File not found in cache");
             }
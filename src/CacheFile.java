@@ -1,35 +1,88 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
 /**
  * Extends the {@link RPCFile} class to include caching-specific properties such as
- * reference count, LRU (Least Recently Used) count, size, stale, valid, and status code.
+ * reference count, size, stale, valid, and status code.
  * This class is used to manage cache files in a cache system, supporting operations
- * like incrementing reference count, LRU count, and managing stale and valid states.
+ * like incrementing reference count and managing stale and valid states.
+ * Recency for LRU eviction is tracked by {@link Cache} itself.
+ *
+ * A cache file also tracks which of its chunks are present on disk, so that it can be
+ * cached partially and read while the rest of it is still being downloaded. Chunks are
+ * claimed by one downloader at a time with {@link #claimChunks(int, int)}, and readers
+ * block in {@link #awaitAvailable(long, int)} until the chunk they touch has arrived.
+ * Only the resident chunks count towards the space the file takes up in the cache.
  * 
  * @author Zijie Huang
  */
-public class CacheFile extends RPCFile implements Comparable<CacheFile> {
+public class CacheFile extends RPCFile {
+
+    /**
+     * The chunk size used for file transfer in bytes.
+     */
+    private static final int CHUNK_SIZE = 1024 * 300;
 
     /**
      * Cache file properties.
      */
     private int refCount;
-    private int lruCount;
     private int size;
     private boolean isStale = false;
     private boolean isValid = true;
     private int statusCode;
 
     /**
-     * Constructs a CacheFile with a specified path, version, and size.
+     * Chunk residency: the chunks present on disk, the chunks being downloaded,
+     * the bytes accounted in the cache, and whether the download failed.
+     */
+    private int chunkCount;
+    private final BitSet presentChunks = new BitSet();
+    private final BitSet requestedChunks = new BitSet();
+    private int residentSize;
+    private boolean isFailed = false;
+
+    /**
+     * The content of the file kept in memory by the cache's memory tier, or null.
+     */
+    private volatile byte[] memoryData;
+
+    /**
+     * The id of the server's open session on this version that missing chunks are downloaded
+     * through, or 0 if there is none.
+     */
+    private volatile long sessionId;
+
+    /**
+     * Constructs a complete CacheFile with a specified path, version, and size.
      *
      * @param path    The file path.
      * @param version The file version.
      * @param size    The file size.
      */
     public CacheFile(String path, int version, int size) {
+        this(path, version, size, true);
+    }
+
+    /**
+     * Constructs a CacheFile with a specified path, version, and size, whose chunks
+     * are either all present or all still to be downloaded.
+     *
+     * @param path     The file path.
+     * @param version  The file version.
+     * @param size     The file size.
+     * @param complete Whether all the chunks of the file are already present.
+     */
+    public CacheFile(String path, int version, int size, boolean complete) {
         super(path, version);
         refCount = 0;
-        lruCount = 0;
         this.size = size;
+        chunkCount = Math.max(1, (int) (((long) size + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        if (complete) {
+            presentChunks.set(0, chunkCount);
+            residentSize = size;
+        }
     }
 
     /**
@@ -70,10 +123,6 @@ public class CacheFile extends RPCFile implements Comparable<CacheFile> {
         return refCount;
     }
 
-    public int getLruCount() {
-        return lruCount;
-    }
-
     public int getSize() {
         return size;
     }
@@ -82,8 +131,73 @@ public class CacheFile extends RPCFile implements Comparable<CacheFile> {
         this.size = size;
     }
 
-    public void setLruCount(int lruCount) {
-        this.lruCount = lruCount;
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public synchronized boolean isComplete() {
+        return presentChunks.cardinality() == chunkCount;
+    }
+
+    public synchronized boolean isChunkPresent(int chunkNum) {
+        return presentChunks.get(chunkNum);
+    }
+
+    public synchronized boolean isFailed() {
+        return isFailed;
+    }
+
+    public synchronized int getResidentSize() {
+        return residentSize;
+    }
+
+    public synchronized void addResidentSize(int bytes) {
+        residentSize += bytes;
+    }
+
+    /**
+     * Returns the size in bytes of the given chunk, the last chunk being possibly shorter.
+     *
+     * @param chunkNum The number of the chunk.
+     * @return The size of the chunk in bytes.
+     */
+    public int getChunkSize(int chunkNum) {
+        return (int) Math.min(CHUNK_SIZE, (long) size - (long) chunkNum * CHUNK_SIZE);
+    }
+
+    /**
+     * Checks whether any chunk in the given range is neither present nor being downloaded.
+     *
+     * @param from The first chunk of the range.
+     * @param to   The chunk after the last one of the range, clipped to the chunk count.
+     * @return true if some chunk of the range still needs to be downloaded; false otherwise.
+     */
+    public synchronized boolean hasUnclaimedChunks(int from, int to) {
+        for (int i = from; i < Math.min(to, chunkCount); i++) {
+            if (!presentChunks.get(i) && !requestedChunks.get(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Claims the chunks of the given range that are neither present nor being downloaded, so that
+     * the caller becomes responsible for downloading them and no other client fetches them twice.
+     *
+     * @param from The first chunk of the range.
+     * @param to   The chunk after the last one of the range, clipped to the chunk count.
+     * @return The numbers of the chunks claimed by the caller, possibly empty.
+     */
+    public synchronized List<Integer> claimChunks(int from, int to) {
+        List<Integer> claimed = new ArrayList<>();
+        for (int i = from; i < Math.min(to, chunkCount); i++) {
+            if (!presentChunks.get(i) && !requestedChunks.get(i)) {
+                requestedChunks.set(i);
+                claimed.add(i);
+            }
+        }
+        return claimed;
     }
 
     public void incrementRefCount() {
@@ -98,18 +212,117 @@ public class CacheFile extends RPCFile implements Comparable<CacheFile> {
         }
     }
 
-    public void incrementLruCount() {
-        lruCount++;
+    /**
+     * Marks a chunk as present on disk and wakes up the readers waiting for it.
+     *
+     * @param chunkNum The number of the chunk that has arrived.
+     */
+    public synchronized void markChunkPresent(int chunkNum) {
+        presentChunks.set(chunkNum);
+        requestedChunks.clear(chunkNum);
+        notifyAll();
+    }
+
+    /**
+     * Marks all the chunks of this file as present, once the whole file has been written at once,
+     * and wakes up the waiting readers.
+     */
+    public synchronized void markComplete() {
+        presentChunks.set(0, chunkCount);
+        requestedChunks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Returns the content of the file if it is held in memory.
+     *
+     * @return The content of the file, or null if it is only on disk.
+     */
+    public byte[] getMemoryData() {
+        return memoryData;
+    }
+
+    public void setMemoryData(byte[] memoryData) {
+        this.memoryData = memoryData;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public synchronized void setSessionId(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Stops downloading chunks through an open session that has ended, unless a newer open has
+     * replaced the session in the meantime.
+     *
+     * @param sessionId The id of the session that has ended.
+     */
+    public synchronized void endSession(long sessionId) {
+        if (this.sessionId == sessionId) {
+            this.sessionId = 0;
+        }
+    }
+
+    /**
+     * Marks the download of this file as failed and wakes up all the waiting readers.
+     */
+    public synchronized void fail() {
+        isFailed = true;
+        notifyAll();
     }
 
-    @Override
-    public int compareTo(CacheFile other) {
-        if (this.refCount == 0 && other.refCount != 0) {
+    /**
+     * Blocks until the chunk containing the given position is present, then returns how many
+     * bytes can be read from that position without touching a missing chunk.
+     *
+     * @param pos The position to read from.
+     * @param len The number of bytes the caller wants to read.
+     * @return The number of bytes available from the position, at most len and 0 at the end of
+     *         the file, or -1 if the download failed or the wait was interrupted.
+     */
+    public synchronized int awaitAvailable(long pos, int len) {
+        if (pos >= size || len <= 0) {
+            return 0;
+        }
+
+        int chunkNum = (int) (pos / CHUNK_SIZE);
+        try {
+            while (!presentChunks.get(chunkNum)) {
+                if (isFailed) {
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return -1;
-        } else if (this.refCount != 0 && other.refCount == 0) {
-            return 1;
-        } else {
-            return Integer.compare(other.lruCount, this.lruCount);
+        }
+
+        int lastChunk = presentChunks.nextClearBit(chunkNum) - 1;
+        long end = Math.min((long) (lastChunk + 1) * CHUNK_SIZE, size);
+        return (int) Math.min(len, end - pos);
+    }
+
+    /**
+     * Blocks until all the chunks of the file are present.
+     *
+     * @return true if the file is complete; false if the download failed or the wait was interrupted.
+     */
+    public synchronized boolean awaitComplete() {
+        try {
+            while (presentChunks.cardinality() < chunkCount) {
+                if (isFailed) {
+                    return false;
+                }
+                wait();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 }
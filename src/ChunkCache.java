@@ -0,0 +1,138 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the chunks most recently read from the files of the server in memory, so that proxies
+ * missing on the same popular file are served without reading it from disk again. Chunks are
+ * keyed by file, version and byte range, and evicted least recently used once their total size
+ * exceeds the capacity. The cached arrays are handed out as they are and must not be modified.
+ *
+ * @author Zijie Huang
+ */
+public class ChunkCache {
+
+    /**
+     * The most bytes the cache holds, and the bytes it holds now.
+     */
+    private final long capacity;
+    private long size;
+
+    /**
+     * The key of a cached chunk.
+     */
+    private record Key(String serverPath, int version, long offset, long length) {
+    }
+
+    /**
+     * The cached chunks, from least to most recently used, and their keys grouped by file, so
+     * that dropping the chunks of a file only touches its own.
+     */
+    private final LinkedHashMap<Key, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Key>> keysByPath = new HashMap<>();
+
+    /**
+     * The number of lookups served from the cache and from disk.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs a ChunkCache.
+     *
+     * @param capacity The most bytes the cache holds; 0 disables it.
+     */
+    public ChunkCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a chunk, counting a hit or a miss.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version of the file.
+     * @param offset     The offset of the chunk in the file.
+     * @param length     The length of the chunk.
+     * @return The data of the chunk, or null if it is not cached.
+     */
+    public byte[] get(String serverPath, int version, long offset, long length) {
+        byte[] data;
+        synchronized (this) {
+            data = chunks.get(new Key(serverPath, version, offset, length));
+        }
+        (data != null ? hits : misses).incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Caches a chunk read from disk, evicting the least recently used ones to make room.
+     * Chunks larger than an eighth of the capacity are not cached.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version of the file.
+     * @param offset     The offset of the chunk in the file.
+     * @param data       The data of the chunk.
+     */
+    public synchronized void put(String serverPath, int version, long offset, byte[] data) {
+        if (data.length > capacity / 8) {
+            return;
+        }
+        Key key = new Key(serverPath, version, offset, data.length);
+        byte[] previous = chunks.put(key, data);
+        if (previous == null) {
+            keysByPath.computeIfAbsent(serverPath, path -> new HashSet<>()).add(key);
+        }
+        size += data.length - (previous == null ? 0 : previous.length);
+
+        Iterator<Map.Entry<Key, byte[]>> iterator = chunks.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<Key, byte[]> eldest = iterator.next();
+            size -= eldest.getValue().length;
+            iterator.remove();
+            forgetKey(eldest.getKey());
+        }
+    }
+
+    /**
+     * Drops all the chunks of a file, when it is replaced or deleted.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    public synchronized void invalidate(String serverPath) {
+        Set<Key> keys = keysByPath.remove(serverPath);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            size -= chunks.remove(key).length;
+        }
+    }
+
+    /**
+     * Removes an evicted chunk from the keys of its file.
+     */
+    private void forgetKey(Key key) {
+        Set<Key> keys = keysByPath.get(key.serverPath());
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByPath.remove(key.serverPath());
+        }
+    }
+
+    /* Getters for the cache counters. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -1,3 +1,8 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 /**
  * Represents a chunk of a file in a remote procedure call (RPC) system, extending {@link RPCFile}.
  * This class is designed to handle data segmentation for large file transfers, supporting
@@ -6,9 +11,26 @@
  * Each chunk includes metadata such as its sequence number, whether it is the last chunk
  * of the file, and the total size of the original file, along with the actual data bytes.
  *
+ * Chunks are sent over RMI in a compact form of their own rather than by default serialization:
+ * one byte of flags packs the booleans and tells which of the optional fields follow, so that
+ * no field descriptors are sent and fields left unset take no room. The path is only set on
+ * the requests that open a file; later calls name the file by id or session instead.
+ *
  * @author Zijie Huang
  */
-public class ChunkFile extends RPCFile {
+public class ChunkFile extends RPCFile implements Externalizable {
+
+    /**
+     * Flags of the externalized form: the booleans, then whether each optional field is present.
+     */
+    private static final int FLAG_LAST_CHUNK = 1;
+    private static final int FLAG_VALID = 1 << 1;
+    private static final int FLAG_EXIST = 1 << 2;
+    private static final int FLAG_PATH = 1 << 3;
+    private static final int FLAG_DATA = 1 << 4;
+    private static final int FLAG_LEASE_TERM = 1 << 5;
+    private static final int FLAG_SESSION_ID = 1 << 6;
+    private static final int FLAG_FILE_ID = 1 << 7;
 
     /**
      * Chunk file properties.
@@ -20,6 +42,9 @@ public class ChunkFile extends RPCFile {
     private boolean isValid = true;
     private boolean isExsit = true;
     private int statusCode;
+    private long leaseTerm;
+    private long sessionId;
+    private long fileId;
 
     /**
      * Constructs a new ChunkFile with specified properties.
@@ -47,6 +72,63 @@ public class ChunkFile extends RPCFile {
         super(path);
     }
 
+    /**
+     * Constructs an empty ChunkFile, to be filled in by {@link #readExternal}.
+     */
+    public ChunkFile() {
+        super(null);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int flags = (lastChunk ? FLAG_LAST_CHUNK : 0)
+            | (isValid ? FLAG_VALID : 0)
+            | (isExsit ? FLAG_EXIST : 0)
+            | (getPath() != null ? FLAG_PATH : 0)
+            | (data != null ? FLAG_DATA : 0)
+            | (leaseTerm != 0 ? FLAG_LEASE_TERM : 0)
+            | (sessionId != 0 ? FLAG_SESSION_ID : 0)
+            | (fileId != 0 ? FLAG_FILE_ID : 0);
+        out.writeByte(flags);
+        out.writeInt(getVersion());
+        out.writeInt(chunkNumber);
+        out.writeLong(totalSize);
+        out.writeInt(statusCode);
+        if (getPath() != null) {
+            out.writeUTF(getPath());
+        }
+        if (leaseTerm != 0) {
+            out.writeLong(leaseTerm);
+        }
+        if (sessionId != 0) {
+            out.writeLong(sessionId);
+        }
+        if (fileId != 0) {
+            out.writeLong(fileId);
+        }
+        if (data != null) {
+            /* an array object is copied to the stream as is, without block data headers every kilobyte */
+            out.writeObject(data);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int flags = in.readUnsignedByte();
+        lastChunk = (flags & FLAG_LAST_CHUNK) != 0;
+        isValid = (flags & FLAG_VALID) != 0;
+        isExsit = (flags & FLAG_EXIST) != 0;
+        setVersion(in.readInt());
+        chunkNumber = in.readInt();
+        totalSize = in.readLong();
+        statusCode = in.readInt();
+        setPath((flags & FLAG_PATH) != 0 ? in.readUTF() : null);
+        leaseTerm = (flags & FLAG_LEASE_TERM) != 0 ? in.readLong() : 0;
+        sessionId = (flags & FLAG_SESSION_ID) != 0 ? in.readLong() : 0;
+        fileId = (flags & FLAG_FILE_ID) != 0 ? in.readLong() : 0;
+        data = (flags & FLAG_DATA) != 0 ? (byte[]) in.readObject() : null;
+    }
+
     /* Getters and setters for chunk properties. */
     public boolean isValid() {
         return isValid;
@@ -80,6 +162,30 @@ public class ChunkFile extends RPCFile {
         return lastChunk;
     }
 
+    public long getLeaseTerm() {
+        return leaseTerm;
+    }
+
+    public void setLeaseTerm(long leaseTerm) {
+        this.leaseTerm = leaseTerm;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public long getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(long fileId) {
+        this.fileId = fileId;
+    }
+
     public long getTotalSize() {
         return totalSize;
     }
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * Keeps the proxy's connection to a server, shared by all its client sessions so that they do
+ * not each look up the server's registry or dial it. Both transports carry concurrent calls on
+ * one connection, so sessions borrow the connection for each call and never give it back.
+ *
+ * The connection is dialed on first use, checked before it is handed out, and dialed again once
+ * a call on it has failed, making a bounded number of attempts spaced by a doubling backoff. A
+ * call that could not be delivered on a stale connection is made once more on a new one. A
+ * listener is told about every reconnection, since the server may have restarted and forgotten
+ * the ids it handed out.
+ *
+ * @author Zijie Huang
+ */
+public class ConnectionPool {
+
+    /**
+     * A call made on a borrowed connection.
+     *
+     * @param <T> The type of the result of the call.
+     */
+    public interface Call<T> {
+        T run(RMIInterface connection) throws RemoteException;
+    }
+
+    /**
+     * Server properties.
+     */
+    private final String serverip;
+    private final int port;
+    private final int framePort;
+
+    /**
+     * The number of times a connection is dialed before giving up, and the delay before the
+     * second attempt, in milliseconds, doubling for each attempt after.
+     */
+    private final int attempts;
+    private final long backoff;
+
+    /**
+     * Called after the connection has been replaced by a new one.
+     */
+    private final Runnable onReconnect;
+
+    /**
+     * The shared connection, or null if it has not been dialed yet or has failed, and whether
+     * one has been dialed before.
+     */
+    private volatile RMIInterface connection;
+    private boolean dialed;
+
+    /**
+     * Constructs a ConnectionPool without dialing the server.
+     *
+     * @param serverip    The IP address of the server.
+     * @param port        The port of the server's RMI registry.
+     * @param framePort   The port of the server's frame listener, or -1 to use RMI.
+     * @param attempts    The number of times a connection is dialed before giving up.
+     * @param backoff     The delay before the second attempt, in milliseconds.
+     * @param onReconnect Called after the connection has been replaced by a new one.
+     */
+    public ConnectionPool(String serverip, int port, int framePort, int attempts, long backoff, Runnable onReconnect) {
+        this.serverip = serverip;
+        this.port = port;
+        this.framePort = framePort;
+        this.attempts = Math.max(1, attempts);
+        this.backoff = backoff;
+        this.onReconnect = onReconnect;
+    }
+
+    /**
+     * Returns a healthy connection to the server, dialing it if needed.
+     *
+     * @return The connection.
+     * @throws RemoteException If the server cannot be reached after all the attempts.
+     */
+    public RMIInterface borrow() throws RemoteException {
+        RMIInterface current = connection;
+        if (isHealthy(current)) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (isHealthy(connection)) {
+                return connection;
+            }
+            connection = null;
+
+            long delay = backoff;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    connection = dial();
+                    break;
+                } catch (IOException | NotBoundException e) {
+                    System.err.println("Connection attempt " + attempt + " to " + serverip + ":" + port + " failed: " + e);
+                    if (attempt >= attempts) {
+                        throw new RemoteException("Cannot connect to " + serverip + ":" + port, e);
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted connecting to " + serverip + ":" + port, e);
+                }
+                delay *= 2;
+            }
+
+            if (dialed) {
+                System.err.println("Reconnected to " + serverip + ":" + port);
+                onReconnect.run();
+            }
+            dialed = true;
+            return connection;
+        }
+    }
+
+    /**
+     * Makes a call on a borrowed connection. If the connection turns out to be stale, as after a
+     * restart of the server, and the call was not delivered, it is made once more on a new
+     * connection. RMI raises those exceptions only before the call reaches the server, so no call
+     * runs twice.
+     *
+     * @param call The call to make.
+     * @return The result of the call.
+     * @throws RemoteException If the call fails, or the server cannot be reached.
+     */
+    public <T> T call(Call<T> call) throws RemoteException {
+        RMIInterface connection = borrow();
+        try {
+            return call.run(connection);
+        } catch (RemoteException e) {
+            fail(connection, e);
+            if (!isUndelivered(e)) {
+                throw e;
+            }
+            System.err.println("Retrying call on a new connection after: " + e);
+        }
+
+        RMIInterface retry = borrow();
+        try {
+            return call.run(retry);
+        } catch (RemoteException e) {
+            fail(retry, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Reports a failed call on a borrowed connection. Unless the server itself raised the error,
+     * the connection is dropped so that the next borrow dials a new one.
+     *
+     * @param failed The connection the call was made on.
+     * @param e      The exception the call failed with.
+     */
+    public synchronized void fail(RMIInterface failed, RemoteException e) {
+        if (e instanceof ServerException || e instanceof ServerError) {
+            return; // the call reached the server, so the connection is fine
+        }
+        if (failed instanceof FrameClient) {
+            return; // a frame connection knows when it has failed
+        }
+        if (failed != null && connection == failed) {
+            System.err.println("Dropping connection to " + serverip + ":" + port + " after: " + e);
+            connection = null;
+        }
+    }
+
+    /**
+     * Checks whether a call failed before it reached the server, so that it can be made again
+     * on a new connection without running twice.
+     *
+     * @param e The exception the call failed with.
+     * @return true if the call was not delivered; false if it may have run.
+     */
+    public static boolean isUndelivered(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException;
+    }
+
+    /**
+     * Checks whether the transport can download ranges straight into a file.
+     *
+     * @return true if the frame transport is used; false otherwise.
+     */
+    public boolean isFrameTransport() {
+        return framePort > 0;
+    }
+
+    private static boolean isHealthy(RMIInterface connection) {
+        if (connection instanceof FrameClient) {
+            return ((FrameClient) connection).isOpen();
+        }
+        return connection != null;
+    }
+
+    /**
+     * Dials the server over the configured transport.
+     */
+    private RMIInterface dial() throws IOException, NotBoundException {
+        if (framePort > 0) {
+            return FrameClient.connect(serverip, framePort);
+        }
+        Registry registry = LocateRegistry.getRegistry(serverip, port);
+        RMIInterface stub = (RMIInterface) registry.lookup("RMIInterface");
+        System.err.println("RMI connection initialized successfully.");
+        return stub;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Sizes the window of chunk requests kept in flight by the proxy's download pipeline.
+ * The window tracks the bandwidth-delay product of the link to the server: it keeps the
+ * highest delivery rate and the lowest round trip time observed recently, and allows enough
+ * outstanding chunks to cover twice that product, so that the link stays busy without
+ * piling up requests at the server. A fixed window is used when adaptation is disabled.
+ *
+ * @author Zijie Huang
+ */
+public class DownloadWindow {
+
+    /**
+     * How long an observed minimum round trip time stays valid, in nanoseconds.
+     */
+    private static final long MIN_RTT_EXPIRY = 10_000_000_000L;
+
+    /**
+     * How much the maximum delivery rate decays on each sample, so that it follows the link down.
+     */
+    private static final double RATE_DECAY = 0.98;
+
+    /**
+     * Window properties.
+     */
+    private final int chunkSize;
+    private final int initialWindow;
+    private final int maxWindow;
+    private final boolean adaptive;
+
+    /**
+     * Link estimates, in bytes, bytes per nanosecond and nanoseconds.
+     */
+    private long delivered = 0;
+    private double maxRate = 0;
+    private long minRtt = Long.MAX_VALUE;
+    private long minRttStamp = 0;
+
+    /**
+     * Constructs a DownloadWindow.
+     *
+     * @param chunkSize     The size of one chunk request in bytes.
+     * @param initialWindow The window used before any sample, or always if not adaptive.
+     * @param maxWindow     The largest window allowed.
+     * @param adaptive      Whether the window follows the observed bandwidth-delay product.
+     */
+    public DownloadWindow(int chunkSize, int initialWindow, int maxWindow, boolean adaptive) {
+        this.chunkSize = chunkSize;
+        this.initialWindow = Math.max(1, initialWindow);
+        this.maxWindow = Math.max(this.initialWindow, maxWindow);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Returns the number of chunk requests that may currently be kept in flight.
+     *
+     * @return The window size, at least 1.
+     */
+    public synchronized int size() {
+        if (!adaptive || maxRate == 0 || minRtt == Long.MAX_VALUE) {
+            return initialWindow;
+        }
+        double bdp = maxRate * minRtt;
+        int window = (int) Math.ceil(2 * bdp / chunkSize);
+        return Math.max(1, Math.min(maxWindow, window));
+    }
+
+    /**
+     * Records that a chunk request is being sent.
+     *
+     * @return A snapshot to pass to {@link #onComplete(long[], int)} when the response arrives.
+     */
+    public synchronized long[] onSend() {
+        return new long[] { System.nanoTime(), delivered };
+    }
+
+    /**
+     * Records that a chunk request has completed, updating the delivery rate and round trip time.
+     *
+     * @param sent  The snapshot returned by {@link #onSend()} for this request.
+     * @param bytes The number of bytes delivered by this request.
+     */
+    public synchronized void onComplete(long[] sent, int bytes) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - sent[0]);
+        delivered += bytes;
+
+        if (elapsed < minRtt || now - minRttStamp > MIN_RTT_EXPIRY) {
+            minRtt = elapsed;
+            minRttStamp = now;
+        }
+
+        /* bytes delivered by all requests while this one was in flight */
+        double rate = (double) (delivered - sent[1]) / elapsed;
+        maxRate = Math.max(rate, maxRate * RATE_DECAY);
+    }
+}
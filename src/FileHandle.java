@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A reference-counted read channel on one version of a file on the server. The channel stays
+ * bound to the inode it was opened on, so it keeps reading its version even after a newer one
+ * has been renamed over the file. The channel is closed once the last reference is released.
+ *
+ * @author Zijie Huang
+ */
+public class FileHandle {
+
+    /**
+     * File handle properties.
+     */
+    private final String serverPath;
+    private final int version;
+    private final FileChannel channel;
+    private int refCount;
+    private boolean closed;
+    private long deadline;
+
+    /**
+     * Constructs a FileHandle holding one reference, owned by the caller.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version of the file the channel reads.
+     * @param channel    The open read channel.
+     */
+    public FileHandle(String serverPath, int version, FileChannel channel) {
+        this.serverPath = serverPath;
+        this.version = version;
+        this.channel = channel;
+        this.refCount = 1;
+    }
+
+    /**
+     * Takes a reference on the handle.
+     *
+     * @return true if the reference was taken; false if the handle is already closed.
+     */
+    public synchronized boolean acquire() {
+        if (closed) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * Releases a reference on the handle, closing the channel with the last one.
+     */
+    public synchronized void release() {
+        if (--refCount > 0 || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error when closing " + serverPath + " version " + version + ": " + e.toString());
+        }
+    }
+
+    /* Getters and setters for file handle properties. */
+    public String getServerPath() {
+        return serverPath;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+}
@@ -0,0 +1,442 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements {@link RMIInterface} on top of the framed binary protocol of {@link FrameCodec},
+ * as a lighter alternative to RMI. A single socket channel to the server is shared by all the
+ * callers in the proxy: each call is sent as one frame tagged with a fresh id, and a reader
+ * thread hands every response frame to the caller waiting for that id, so concurrent calls do
+ * not wait for each other's round trips.
+ *
+ * @author Zijie Huang
+ */
+public class FrameClient implements RMIInterface {
+
+    /**
+     * The open connections, keyed by server address.
+     */
+    private static final Map<String, FrameClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Connection properties.
+     */
+    private final String address;
+    private final SocketChannel channel;
+    private final AtomicLong nextCallId = new AtomicLong();
+    private final Map<Long, CompletableFuture<ByteBuffer>> calls = new ConcurrentHashMap<>();
+    private final Map<Long, Sink> sinks = new ConcurrentHashMap<>();
+    private volatile IOException failure;
+
+    /**
+     * The callback lease breaks pushed on this connection are delivered to, and the client id
+     * it was registered under.
+     */
+    private volatile LeaseCallback leaseCallback;
+    private long clientId;
+
+    /**
+     * Where the raw bytes of a range transfer are to be written.
+     */
+    private static class Sink {
+        private final FileChannel file;
+        private final long position;
+
+        private Sink(FileChannel file, long position) {
+            this.file = file;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Returns the connection to a server, opening it if there is none or the last one failed.
+     *
+     * @param host The host name or IP address of the server.
+     * @param port The port of the server's frame listener.
+     * @return The connection.
+     * @throws IOException If the server cannot be reached.
+     */
+    public static FrameClient connect(String host, int port) throws IOException {
+        String address = host + ":" + port;
+        synchronized (clients) {
+            FrameClient client = clients.get(address);
+            if (client == null || client.failure != null) {
+                client = new FrameClient(address, SocketChannel.open(new InetSocketAddress(host, port)));
+                clients.put(address, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Checks whether the connection is still usable.
+     *
+     * @return true if the connection has not failed; false otherwise.
+     */
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Constructs a FrameClient on a connected channel and starts its reader thread.
+     *
+     * @param address The address of the server, as the key of the connection.
+     * @param channel The connected channel.
+     */
+    private FrameClient(String address, SocketChannel channel) {
+        this.address = address;
+        this.channel = channel;
+
+        Thread reader = new Thread(this::readResponses, "frame-reader-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads response frames and completes the calls they answer, until the connection fails.
+     */
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        try {
+            while (true) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int length = header.getInt();
+                long callId = header.getLong();
+                byte status = header.get();
+                if (length < FrameCodec.HEADER_SIZE - 4 || length > FrameCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length + " from " + address);
+                }
+
+                if (status == FrameCodec.STATUS_BREAK) {
+                    ByteBuffer body = ByteBuffer.allocate(length - (FrameCodec.HEADER_SIZE - 4));
+                    readFully(body);
+                    body.flip();
+                    deliverBreak(FrameCodec.getString(body));
+                    acknowledgeBreak(callId);
+                    continue;
+                }
+
+                Sink sink = sinks.remove(callId);
+                ByteBuffer body;
+                if (sink != null && status == FrameCodec.STATUS_OK) {
+                    body = receiveRange(sink, length - (FrameCodec.HEADER_SIZE - 4));
+                } else {
+                    body = ByteBuffer.allocate(length - (FrameCodec.HEADER_SIZE - 4));
+                    readFully(body);
+                    body.flip();
+                }
+
+                CompletableFuture<ByteBuffer> call = calls.remove(callId);
+                if (call == null) {
+                    System.err.println("Dropping response to unknown call " + callId);
+                } else if (status == FrameCodec.STATUS_OK) {
+                    call.complete(body);
+                } else {
+                    call.completeExceptionally(new RemoteException(FrameCodec.getString(body)));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Frame connection to " + address + " failed: " + e);
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the body of a range transfer response, moving its raw bytes from the socket into the
+     * sink file with {@link FileChannel#transferFrom} rather than through a heap buffer.
+     *
+     * @param sink       The file and position the range is written to.
+     * @param bodyLength The length of the response body, raw bytes included.
+     * @return A buffer holding the length of the range, or -1 if the version was not available.
+     * @throws IOException If the socket or the sink file fails, which leaves the connection unusable.
+     */
+    private ByteBuffer receiveRange(Sink sink, int bodyLength) throws IOException {
+        ByteBuffer rangeSize = ByteBuffer.allocate(4);
+        readFully(rangeSize);
+        rangeSize.flip();
+        long remaining = bodyLength - 4;
+        if (remaining != Math.max(0, rangeSize.getInt(0))) {
+            throw new IOException("Bad range frame from " + address);
+        }
+
+        long position = sink.position;
+        while (remaining > 0) {
+            long transferred = sink.file.transferFrom(channel, position, remaining);
+            if (transferred <= 0) {
+                throw new EOFException("Connection closed by " + address);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        return rangeSize;
+    }
+
+    /**
+     * Hands a lease break pushed by the server to the registered callback.
+     */
+    private void deliverBreak(String path) {
+        LeaseCallback callback = leaseCallback;
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.breakLease(path);
+        } catch (RemoteException e) {
+            System.err.println("Error delivering lease break: " + e);
+        }
+    }
+
+    /**
+     * Tells the server that a lease break has been delivered, so that the change waiting on it
+     * can go ahead.
+     */
+    private void acknowledgeBreak(long breakId) throws IOException {
+        ByteBuffer ack = FrameCodec.allocate(FrameCodec.OP_BREAK_ACK, 0);
+        FrameCodec.seal(ack, breakId);
+        synchronized (channel) {
+            while (ack.hasRemaining()) {
+                channel.write(ack);
+            }
+        }
+    }
+
+    /**
+     * Marks the connection as failed and fails every call still waiting for a response.
+     */
+    private void fail(IOException e) {
+        failure = e;
+        clients.remove(address, this);
+        sinks.clear();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Long callId : calls.keySet()) {
+            CompletableFuture<ByteBuffer> call = calls.remove(callId);
+            if (call != null) {
+                call.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by " + address);
+            }
+        }
+    }
+
+    /**
+     * Sends a request frame and waits for its response.
+     *
+     * @param request The request frame, with its body written.
+     * @return The body of the response.
+     * @throws RemoteException If the connection fails or the server reports an error.
+     */
+    private ByteBuffer call(ByteBuffer request) throws RemoteException {
+        return call(request, null);
+    }
+
+    /**
+     * Sends a request frame and waits for its response, having the reader thread write the raw
+     * bytes of a range transfer response into a sink.
+     *
+     * @param request The request frame, with its body written.
+     * @param sink    Where the raw bytes of the response go, or null for a regular call.
+     * @return The body of the response.
+     * @throws RemoteException If the connection fails or the server reports an error.
+     */
+    private ByteBuffer call(ByteBuffer request, Sink sink) throws RemoteException {
+        long callId = nextCallId.incrementAndGet();
+        FrameCodec.seal(request, callId);
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        calls.put(callId, response);
+        if (sink != null) {
+            sinks.put(callId, sink);
+        }
+
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            synchronized (channel) {
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            }
+            return response.get();
+        } catch (IOException e) {
+            calls.remove(callId);
+            sinks.remove(callId);
+            fail(e);
+            throw new RemoteException("Frame call to " + address + " failed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Frame call to " + address + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            calls.remove(callId);
+            sinks.remove(callId);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for " + address, e);
+        }
+    }
+
+    @Override
+    public ChunkFile openFile(String path, FileHandling.OpenOption o, int cachedVersion, long clientId)
+        throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_OPEN_FILE, FrameCodec.sizeOf(path) + 1 + 4 + 8);
+        FrameCodec.putString(request, path);
+        request.put((byte) (o == null ? -1 : o.ordinal()));
+        request.putInt(cachedVersion);
+        request.putLong(clientId);
+        return FrameCodec.getChunkFile(call(request));
+    }
+
+    /**
+     * Registers for leases on this connection. The callback is not sent to the server: breaks are
+     * pushed back on the connection and delivered to it locally. A connection registers only once,
+     * so later calls with the same callback return the same client id.
+     */
+    @Override
+    public synchronized long registerClient(LeaseCallback callback) throws RemoteException {
+        if (clientId != 0 && leaseCallback == callback) {
+            return clientId;
+        }
+        leaseCallback = callback;
+        clientId = call(FrameCodec.allocate(FrameCodec.OP_REGISTER_CLIENT, 0)).getLong();
+        return clientId;
+    }
+
+    @Override
+    public long lookupFile(String path, boolean create) throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_LOOKUP_FILE, FrameCodec.sizeOf(path) + 1);
+        FrameCodec.putString(request, path);
+        request.put((byte) (create ? 1 : 0));
+        return call(request).getLong();
+    }
+
+    @Override
+    public ChunkFile downloadRange(long fileId, int version, long offset, int length) throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_DOWNLOAD_RANGE, 8 + 4 + 8 + 4);
+        request.putLong(fileId);
+        request.putInt(version);
+        request.putLong(offset);
+        request.putInt(length);
+        return FrameCodec.getChunkFile(call(request));
+    }
+
+    @Override
+    public ChunkFile downloadSession(long sessionId, long offset, int length) throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_DOWNLOAD_SESSION, 8 + 8 + 4);
+        request.putLong(sessionId);
+        request.putLong(offset);
+        request.putInt(length);
+        return FrameCodec.getChunkFile(call(request));
+    }
+
+    /**
+     * Downloads a byte range of the file version of an open session straight into a file, like
+     * {@link #transferRange}.
+     *
+     * @param sessionId The id of the open session.
+     * @param offset    The offset of the first byte of the range.
+     * @param length    The number of bytes to download.
+     * @param sink      The file the range is written to.
+     * @param position  The position in the sink the range is written at.
+     * @return The number of bytes written, or -1 if the session is unknown.
+     * @throws RemoteException If the call fails.
+     */
+    public int transferSession(long sessionId, long offset, int length, FileChannel sink, long position)
+        throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_TRANSFER_SESSION, 8 + 8 + 4);
+        request.putLong(sessionId);
+        request.putLong(offset);
+        request.putInt(length);
+        return call(request, new Sink(sink, position)).getInt();
+    }
+
+    /**
+     * Downloads a byte range of a specific version of a file straight into a file, without
+     * copying it through the heap on either end.
+     *
+     * @param fileId   The id of the file.
+     * @param version  The version of the file the range is requested from.
+     * @param offset   The offset of the first byte of the range.
+     * @param length   The number of bytes to download, clipped to the end of the file.
+     * @param sink     The file the range is written to.
+     * @param position The position in the sink the range is written at.
+     * @return The number of bytes written, or -1 if the requested version is not available.
+     * @throws RemoteException If the connection fails or the server reports an error.
+     */
+    public int transferRange(long fileId, int version, long offset, int length, FileChannel sink, long position)
+        throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_TRANSFER_RANGE, 8 + 4 + 8 + 4);
+        request.putLong(fileId);
+        request.putInt(version);
+        request.putLong(offset);
+        request.putInt(length);
+        return call(request, new Sink(sink, position)).getInt();
+    }
+
+    @Override
+    public long beginUpload(long fileId, int version, long totalSize) throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_BEGIN_UPLOAD, 8 + 4 + 8);
+        request.putLong(fileId);
+        request.putInt(version);
+        request.putLong(totalSize);
+        return call(request).getLong();
+    }
+
+    @Override
+    public int uploadChunk(long uploadId, ChunkFile chunkFile) throws RemoteException {
+        ByteBuffer request = FrameCodec.allocate(FrameCodec.OP_UPLOAD_CHUNK, 8 + FrameCodec.sizeOf(chunkFile));
+        request.putLong(uploadId);
+        FrameCodec.putChunkFile(request, chunkFile);
+        return call(request).getInt();
+    }
+
+    @Override
+    public boolean isFileExist(long fileId) throws RemoteException {
+        return call(fileRequest(FrameCodec.OP_IS_FILE_EXIST, fileId)).get() != 0;
+    }
+
+    @Override
+    public boolean isDirectory(long fileId) throws RemoteException {
+        return call(fileRequest(FrameCodec.OP_IS_DIRECTORY, fileId)).get() != 0;
+    }
+
+    @Override
+    public int getFileVersion(long fileId) throws RemoteException {
+        return call(fileRequest(FrameCodec.OP_GET_FILE_VERSION, fileId)).getInt();
+    }
+
+    @Override
+    public int reserveVersion(long fileId) throws RemoteException {
+        return call(fileRequest(FrameCodec.OP_RESERVE_VERSION, fileId)).getInt();
+    }
+
+    @Override
+    public boolean delete(long fileId) throws RemoteException {
+        return call(fileRequest(FrameCodec.OP_DELETE, fileId)).get() != 0;
+    }
+
+    private static ByteBuffer fileRequest(byte opcode, long fileId) {
+        ByteBuffer request = FrameCodec.allocate(opcode, 8);
+        request.putLong(fileId);
+        return request;
+    }
+}
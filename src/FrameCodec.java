@@ -0,0 +1,252 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Defines the framed binary protocol spoken by {@link FrameClient} and {@link FrameServer}, and
+ * encodes the values passed through it. Every frame starts with a header holding the length of
+ * the rest of the frame, the id of the call it belongs to, and an opcode for requests or a
+ * status for responses; the arguments or the result follow as plain binary fields. Calls are
+ * matched to responses by id, so many of them can be in flight on one connection at once.
+ *
+ * @author Zijie Huang
+ */
+public final class FrameCodec {
+
+    /**
+     * The size of a frame header: length, call id, and opcode or status.
+     */
+    public static final int HEADER_SIZE = 4 + 8 + 1;
+
+    /**
+     * The largest frame accepted, to reject garbage before allocating a buffer for it.
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Request opcodes, one per {@link RMIInterface} method.
+     */
+    public static final byte OP_DOWNLOAD_RANGE = 2;
+    public static final byte OP_BEGIN_UPLOAD = 3;
+    public static final byte OP_UPLOAD_CHUNK = 4;
+    public static final byte OP_IS_FILE_EXIST = 5;
+    public static final byte OP_IS_DIRECTORY = 6;
+    public static final byte OP_GET_FILE_VERSION = 7;
+    public static final byte OP_RESERVE_VERSION = 8;
+    public static final byte OP_DELETE = 9;
+    public static final byte OP_OPEN_FILE = 11;
+    public static final byte OP_REGISTER_CLIENT = 12;
+    public static final byte OP_DOWNLOAD_SESSION = 13;
+    public static final byte OP_LOOKUP_FILE = 15;
+
+    /**
+     * Request opcodes of range downloads, named by file id and version or by open session, whose
+     * response carries the raw bytes of the range after a length field, so that both ends can
+     * move them between file and socket without copying them through the heap. The length is -1
+     * if the requested version is not available or the session is unknown.
+     */
+    public static final byte OP_TRANSFER_RANGE = 10;
+    public static final byte OP_TRANSFER_SESSION = 14;
+
+    /**
+     * Response statuses.
+     */
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    /**
+     * Status of a frame pushed by the server outside of any call, breaking the lease on the path
+     * in its body. Its call id is the id of the break, which the client sends back in an
+     * {@link #OP_BREAK_ACK} frame once it has dropped the lease.
+     */
+    public static final byte STATUS_BREAK = 2;
+
+    /**
+     * Request opcode acknowledging a lease break, with the id of the break as its call id. It has
+     * no body and gets no response.
+     */
+    public static final byte OP_BREAK_ACK = 16;
+
+    /**
+     * Flags of an encoded ChunkFile.
+     */
+    private static final int FLAG_LAST_CHUNK = 1;
+    private static final int FLAG_VALID = 1 << 1;
+    private static final int FLAG_EXIST = 1 << 2;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Allocates a frame with room for the header, positioned at the start of the body.
+     *
+     * @param opcode   The opcode or status of the frame.
+     * @param bodySize The size of the body in bytes.
+     * @return The frame buffer.
+     */
+    public static ByteBuffer allocate(byte opcode, int bodySize) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        frame.position(HEADER_SIZE - 1);
+        frame.put(opcode);
+        return frame;
+    }
+
+    /**
+     * Fills in the length and call id of a frame whose body has been written, and flips it for sending.
+     *
+     * @param frame  The frame buffer.
+     * @param callId The id of the call.
+     */
+    public static void seal(ByteBuffer frame, long callId) {
+        frame.flip();
+        frame.putInt(0, frame.limit() - 4);
+        frame.putLong(4, callId);
+    }
+
+    /**
+     * Returns the encoded size of a string.
+     *
+     * @param s The string, possibly null.
+     * @return The size in bytes.
+     */
+    public static int sizeOf(String s) {
+        return 4 + (s == null ? 0 : utf8Length(s));
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes; null is written as length -1.
+     *
+     * @param buffer The buffer to write to.
+     * @param s      The string, possibly null.
+     */
+    public static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #putString}.
+     *
+     * @param buffer The buffer to read from.
+     * @return The string, possibly null.
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * Returns the encoded size of a ChunkFile.
+     *
+     * @param chunkFile The ChunkFile, possibly null.
+     * @return The size in bytes.
+     */
+    public static int sizeOf(ChunkFile chunkFile) {
+        if (chunkFile == null) {
+            return 1;
+        }
+        byte[] data = chunkFile.getData();
+        return 1 + sizeOf(chunkFile.getPath()) + 4 + 4 + 8 + 4 + 8 + 8 + 8 + 4 + (data == null ? 0 : data.length);
+    }
+
+    /**
+     * Writes a ChunkFile field by field, with its booleans packed into one flags byte.
+     *
+     * @param buffer    The buffer to write to.
+     * @param chunkFile The ChunkFile, possibly null.
+     */
+    public static void putChunkFile(ByteBuffer buffer, ChunkFile chunkFile) {
+        if (chunkFile == null) {
+            buffer.put((byte) -1);
+            return;
+        }
+        int flags = (chunkFile.isLastChunk() ? FLAG_LAST_CHUNK : 0)
+            | (chunkFile.isValid() ? FLAG_VALID : 0)
+            | (chunkFile.isExsit() ? FLAG_EXIST : 0);
+        buffer.put((byte) flags);
+        putString(buffer, chunkFile.getPath());
+        buffer.putInt(chunkFile.getVersion());
+        buffer.putInt(chunkFile.getChunkNumber());
+        buffer.putLong(chunkFile.getTotalSize());
+        buffer.putInt(chunkFile.getStatusCode());
+        buffer.putLong(chunkFile.getLeaseTerm());
+        buffer.putLong(chunkFile.getSessionId());
+        buffer.putLong(chunkFile.getFileId());
+        byte[] data = chunkFile.getData();
+        if (data == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * Reads a ChunkFile written by {@link #putChunkFile}.
+     *
+     * @param buffer The buffer to read from.
+     * @return The ChunkFile, possibly null.
+     */
+    public static ChunkFile getChunkFile(ByteBuffer buffer) {
+        int flags = buffer.get();
+        if (flags < 0) {
+            return null;
+        }
+        String path = getString(buffer);
+        int version = buffer.getInt();
+        int chunkNumber = buffer.getInt();
+        long totalSize = buffer.getLong();
+        int statusCode = buffer.getInt();
+        long leaseTerm = buffer.getLong();
+        long sessionId = buffer.getLong();
+        long fileId = buffer.getLong();
+        int length = buffer.getInt();
+        byte[] data = null;
+        if (length >= 0) {
+            data = new byte[length];
+            buffer.get(data);
+        }
+
+        ChunkFile chunkFile = new ChunkFile(path, data, version, chunkNumber, (flags & FLAG_LAST_CHUNK) != 0);
+        chunkFile.setTotalSize(totalSize);
+        chunkFile.setStatusCode(statusCode);
+        chunkFile.setLeaseTerm(leaseTerm);
+        chunkFile.setSessionId(sessionId);
+        chunkFile.setFileId(fileId);
+        chunkFile.setValid((flags & FLAG_VALID) != 0);
+        chunkFile.setExsit((flags & FLAG_EXIST) != 0);
+        return chunkFile;
+    }
+
+    /**
+     * Returns the number of bytes a string takes in UTF-8, without encoding it.
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // unpaired surrogates are encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
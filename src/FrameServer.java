@@ -0,0 +1,438 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the operations of the {@link Server} over the framed binary protocol of
+ * {@link FrameCodec}. Each connection has a reader thread that decodes request
+ * frames and hands them to a shared worker pool, so a slow call does not hold up the others
+ * sent on the same connection; responses are written back as they complete, tagged with the
+ * id of the call they answer.
+ *
+ * A client registered for leases on a connection gets its lease breaks pushed on it, and a break
+ * only counts as delivered once the client has acknowledged it. When the connection closes, the
+ * client is unregistered, so that its leases are waited out instead of being broken.
+ *
+ * @author Zijie Huang
+ */
+public class FrameServer {
+
+    /**
+     * How long a pushed lease break waits for its acknowledgement, in milliseconds, set with
+     * -Dserver.breaktimeout. A client that does not answer in time is taken as unreachable.
+     */
+    private static final long BREAK_TIMEOUT = Long.getLong("server.breaktimeout", 5000);
+
+    /**
+     * The server whose operations are served.
+     */
+    private final Server target;
+
+    /**
+     * The listening channel.
+     */
+    private final ServerSocketChannel listener;
+
+    /**
+     * The workers running the calls of all connections.
+     */
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "frame-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The client registered for leases on a connection, and its breaks waiting for an
+     * acknowledgement, keyed by break id.
+     */
+    private static class Registration {
+        private final long clientId;
+        private final Map<Long, CompletableFuture<Void>> pendingBreaks = new ConcurrentHashMap<>();
+
+        private Registration(long clientId) {
+            this.clientId = clientId;
+        }
+    }
+
+    /**
+     * The registrations of the open connections, and the source of break ids.
+     */
+    private final Map<SocketChannel, Registration> registrations = new ConcurrentHashMap<>();
+    private final AtomicLong nextBreakId = new AtomicLong();
+
+    /**
+     * Constructs a FrameServer and binds it to a port.
+     *
+     * @param target The server the calls are run on.
+     * @param port   The port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public FrameServer(Server target, int port) throws IOException {
+        this.target = target;
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptConnections, "frame-acceptor");
+        acceptor.start();
+    }
+
+    private void acceptConnections() {
+        while (listener.isOpen()) {
+            try {
+                SocketChannel channel = listener.accept();
+                Thread reader = new Thread(() -> readRequests(channel), "frame-reader-" + channel.getRemoteAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.err.println("Error accepting frame connection: " + e);
+            }
+        }
+    }
+
+    /**
+     * Reads request frames from a connection and dispatches them, until the connection closes.
+     */
+    private void readRequests(SocketChannel channel) {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        try {
+            while (true) {
+                header.clear();
+                readFully(channel, header);
+                header.flip();
+                int length = header.getInt();
+                long callId = header.getLong();
+                byte opcode = header.get();
+                if (length < FrameCodec.HEADER_SIZE - 4 || length > FrameCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+
+                ByteBuffer body = ByteBuffer.allocate(length - (FrameCodec.HEADER_SIZE - 4));
+                readFully(channel, body);
+                body.flip();
+                if (opcode == FrameCodec.OP_BREAK_ACK) {
+                    acknowledgeBreak(channel, callId);
+                    continue;
+                }
+                workers.execute(() -> respond(channel, callId, opcode, body));
+            }
+        } catch (EOFException e) {
+            System.err.println("Frame connection closed");
+        } catch (IOException e) {
+            System.err.println("Frame connection failed: " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            unregister(channel);
+        }
+    }
+
+    /**
+     * Unregisters the client of a closed connection from leases, and fails its breaks still
+     * waiting for an acknowledgement.
+     */
+    private void unregister(SocketChannel channel) {
+        Registration registration = registrations.remove(channel);
+        if (registration == null) {
+            return;
+        }
+        target.unregisterClient(registration.clientId);
+        for (CompletableFuture<Void> pending : registration.pendingBreaks.values()) {
+            pending.completeExceptionally(new EOFException("Connection closed"));
+        }
+    }
+
+    /**
+     * Completes a lease break acknowledged by the client of a connection.
+     */
+    private void acknowledgeBreak(SocketChannel channel, long breakId) {
+        Registration registration = registrations.get(channel);
+        CompletableFuture<Void> pending = registration == null ? null : registration.pendingBreaks.remove(breakId);
+        if (pending != null) {
+            pending.complete(null);
+        }
+    }
+
+    /**
+     * Runs one call and writes its response.
+     */
+    private void respond(SocketChannel channel, long callId, byte opcode, ByteBuffer body) {
+        if (opcode == FrameCodec.OP_TRANSFER_RANGE) {
+            transferRange(channel, callId, body);
+            return;
+        }
+        if (opcode == FrameCodec.OP_TRANSFER_SESSION) {
+            long sessionId = body.getLong();
+            long offset = body.getLong();
+            int length = body.getInt();
+            sendRange(channel, callId, target.openSessionHandle(sessionId), offset, length);
+            return;
+        }
+
+        ByteBuffer response;
+        try {
+            response = dispatch(channel, opcode, body);
+        } catch (Exception e) {
+            System.err.println("Frame call " + opcode + " failed: " + e);
+            String message = String.valueOf(e.getMessage());
+            response = FrameCodec.allocate(FrameCodec.STATUS_ERROR, FrameCodec.sizeOf(message));
+            FrameCodec.putString(response, message);
+        }
+
+        write(channel, callId, response);
+    }
+
+    /**
+     * Seals a response frame and writes it to a connection.
+     */
+    private static void write(SocketChannel channel, long callId, ByteBuffer response) {
+        FrameCodec.seal(response, callId);
+        try {
+            synchronized (channel) {
+                while (response.hasRemaining()) {
+                    channel.write(response);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing frame response: " + e);
+        }
+    }
+
+    /**
+     * Sends a range of a file version with {@link FileChannel#transferTo}, which lets the kernel
+     * copy the bytes from the page cache to the socket without passing them through the heap.
+     * Only the frame header and the length field are built in memory.
+     */
+    private void transferRange(SocketChannel channel, long callId, ByteBuffer body) {
+        long fileId = body.getLong();
+        int version = body.getInt();
+        long offset = body.getLong();
+        int length = body.getInt();
+
+        FileHandle handle;
+        try {
+            handle = target.openVersion(fileId, version);
+        } catch (IOException e) {
+            System.err.println("Error opening file range: " + e);
+            String message = String.valueOf(e.getMessage());
+            ByteBuffer response = FrameCodec.allocate(FrameCodec.STATUS_ERROR, FrameCodec.sizeOf(message));
+            FrameCodec.putString(response, message);
+            write(channel, callId, response);
+            return;
+        }
+        sendRange(channel, callId, handle, offset, length);
+    }
+
+    /**
+     * Sends a range of a file version through a handle on it, releasing the handle when done.
+     *
+     * @param channel The connection the call came from.
+     * @param callId  The id of the call.
+     * @param handle  The handle on the file version, or null if it is not available.
+     * @param offset  The offset of the first byte of the range.
+     * @param length  The number of bytes to send, clipped to the end of the file.
+     */
+    private void sendRange(SocketChannel channel, long callId, FileHandle handle, long offset, int length) {
+        try {
+            FileChannel file = handle == null ? null : handle.getChannel();
+            long rangeSize = file == null ? -1 : Math.max(0, Math.min(length, file.size() - offset));
+            ByteBuffer response = FrameCodec.allocate(FrameCodec.STATUS_OK, 4);
+            response.putInt((int) rangeSize);
+            /* the length field counts the raw bytes following the frame body */
+            FrameCodec.seal(response, callId);
+            response.putInt(0, response.limit() - 4 + (int) Math.max(0, rangeSize));
+
+            synchronized (channel) {
+                while (response.hasRemaining()) {
+                    channel.write(response);
+                }
+                long position = offset;
+                long end = offset + Math.max(0, rangeSize);
+                while (position < end) {
+                    position += file.transferTo(position, end - position, channel);
+                }
+            }
+            System.err.println("Transferred file range: " + offset + "+" + rangeSize
+                + " of " + (handle == null ? "a missing file" : handle.getServerPath()));
+        } catch (IOException e) {
+            /* the frame may be cut short, so the connection cannot be used any more */
+            System.err.println("Error transferring file range: " + e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            if (handle != null) {
+                handle.release();
+            }
+        }
+    }
+
+    /**
+     * Decodes the arguments of a call, runs it on the target, and encodes its result.
+     *
+     * @param channel The connection the call came from.
+     * @param opcode  The opcode of the call.
+     * @param body    The body of the request frame.
+     * @return The response frame, with its body written.
+     * @throws RemoteException If the call fails.
+     */
+    private ByteBuffer dispatch(SocketChannel channel, byte opcode, ByteBuffer body) throws RemoteException {
+        ByteBuffer response;
+        switch (opcode) {
+            case FrameCodec.OP_OPEN_FILE: {
+                String path = FrameCodec.getString(body);
+                int option = body.get();
+                int cachedVersion = body.getInt();
+                FileHandling.OpenOption o = option < 0 ? null : FileHandling.OpenOption.values()[option];
+                long clientId = body.getLong();
+                ChunkFile chunkFile = target.openFile(path, o, cachedVersion, clientId);
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, FrameCodec.sizeOf(chunkFile));
+                FrameCodec.putChunkFile(response, chunkFile);
+                return response;
+            }
+            case FrameCodec.OP_REGISTER_CLIENT: {
+                LeaseCallback callback = path -> pushBreak(channel, path);
+                long clientId = target.registerClient(callback);
+                Registration previous = registrations.put(channel, new Registration(clientId));
+                if (previous != null) {
+                    target.unregisterClient(previous.clientId);
+                }
+                if (!channel.isOpen()) {
+                    unregister(channel); // closed while registering
+                }
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, 8);
+                response.putLong(clientId);
+                return response;
+            }
+            case FrameCodec.OP_LOOKUP_FILE: {
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, 8);
+                response.putLong(target.lookupFile(FrameCodec.getString(body), body.get() != 0));
+                return response;
+            }
+            case FrameCodec.OP_DOWNLOAD_RANGE: {
+                long fileId = body.getLong();
+                int version = body.getInt();
+                long offset = body.getLong();
+                int length = body.getInt();
+                ChunkFile chunkFile = target.downloadRange(fileId, version, offset, length);
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, FrameCodec.sizeOf(chunkFile));
+                FrameCodec.putChunkFile(response, chunkFile);
+                return response;
+            }
+            case FrameCodec.OP_DOWNLOAD_SESSION: {
+                long sessionId = body.getLong();
+                long offset = body.getLong();
+                int length = body.getInt();
+                ChunkFile chunkFile = target.downloadSession(sessionId, offset, length);
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, FrameCodec.sizeOf(chunkFile));
+                FrameCodec.putChunkFile(response, chunkFile);
+                return response;
+            }
+            case FrameCodec.OP_BEGIN_UPLOAD: {
+                long fileId = body.getLong();
+                int version = body.getInt();
+                long totalSize = body.getLong();
+                response = FrameCodec.allocate(FrameCodec.STATUS_OK, 8);
+                response.putLong(target.beginUpload(fileId, version, totalSize));
+                return response;
+            }
+            case FrameCodec.OP_UPLOAD_CHUNK: {
+                long uploadId = body.getLong();
+                ChunkFile chunkFile = FrameCodec.getChunkFile(body);
+                return intResponse(target.uploadChunk(uploadId, chunkFile));
+            }
+            case FrameCodec.OP_IS_FILE_EXIST:
+                return booleanResponse(target.isFileExist(body.getLong()));
+            case FrameCodec.OP_IS_DIRECTORY:
+                return booleanResponse(target.isDirectory(body.getLong()));
+            case FrameCodec.OP_GET_FILE_VERSION:
+                return intResponse(target.getFileVersion(body.getLong()));
+            case FrameCodec.OP_RESERVE_VERSION:
+                return intResponse(target.reserveVersion(body.getLong()));
+            case FrameCodec.OP_DELETE:
+                return booleanResponse(target.delete(body.getLong()));
+            default:
+                throw new RemoteException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Pushes a lease break to the client at the other end of a connection, and waits until the
+     * client acknowledges that it has dropped the lease.
+     *
+     * @param channel The connection the client registered on.
+     * @param path    The path of the file, as the client named it.
+     * @throws RemoteException If the break cannot be written, the connection closes, or the
+     *                         client does not acknowledge the break in time.
+     */
+    private void pushBreak(SocketChannel channel, String path) throws RemoteException {
+        Registration registration = registrations.get(channel);
+        if (registration == null) {
+            throw new RemoteException("Client is no longer connected");
+        }
+        long breakId = nextBreakId.incrementAndGet();
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        registration.pendingBreaks.put(breakId, acknowledged);
+
+        ByteBuffer frame = FrameCodec.allocate(FrameCodec.STATUS_BREAK, FrameCodec.sizeOf(path));
+        FrameCodec.putString(frame, path);
+        FrameCodec.seal(frame, breakId);
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+            acknowledged.get(BREAK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            throw new RemoteException("Error pushing lease break", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted pushing lease break", e);
+        } finally {
+            registration.pendingBreaks.remove(breakId);
+        }
+    }
+
+    private static ByteBuffer booleanResponse(boolean value) {
+        ByteBuffer response = FrameCodec.allocate(FrameCodec.STATUS_OK, 1);
+        response.put((byte) (value ? 1 : 0));
+        return response;
+    }
+
+    private static ByteBuffer intResponse(int value) {
+        ByteBuffer response = FrameCodec.allocate(FrameCodec.STATUS_OK, 4);
+        response.putInt(value);
+        return response;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps read channels on the files of the server open between chunk reads, so that a download
+ * does not open and close the file for every chunk. Channels are shared by all the readers of a
+ * file version through reference-counted {@link FileHandle}s and read with positional reads.
+ * The cache holds a bounded number of handles, closes the ones left idle, and drops the handle
+ * of a file as soon as the file is replaced or deleted.
+ *
+ * @author Zijie Huang
+ */
+public class HandleCache {
+
+    /**
+     * The most handles kept open, and how long an unused handle is kept, in milliseconds.
+     */
+    private final int maxHandles;
+    private final long idleTimeout;
+
+    /**
+     * The cached handles, keyed by server path, from least to most recently used. Each one holds
+     * a reference of its own, released when it leaves the cache.
+     */
+    private final LinkedHashMap<String, FileHandle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The executor closing idle handles.
+     */
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "handle-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a HandleCache and starts closing idle handles in the background.
+     *
+     * @param maxHandles  The most handles kept open; 0 disables caching.
+     * @param idleTimeout How long an unused handle is kept, in milliseconds.
+     */
+    public HandleCache(int maxHandles, long idleTimeout) {
+        this.maxHandles = maxHandles;
+        this.idleTimeout = idleTimeout;
+        long period = Math.max(1, idleTimeout / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a handle on a version of a file, opening the file if it has no cached handle. Must
+     * be called with the file's read lock held and the version checked to be the current one, so
+     * that the handle is bound to the inode of that version.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The current version of the file.
+     * @return A handle on the file, to be released by the caller.
+     * @throws IOException If the file cannot be opened.
+     */
+    public FileHandle acquire(String serverPath, int version) throws IOException {
+        synchronized (this) {
+            FileHandle cached = handles.get(serverPath);
+            if (cached != null && cached.getVersion() == version && cached.acquire()) {
+                cached.setDeadline(System.currentTimeMillis() + idleTimeout);
+                return cached;
+            }
+        }
+
+        FileHandle handle = new FileHandle(serverPath, version,
+            FileChannel.open(Paths.get(serverPath), StandardOpenOption.READ));
+        if (maxHandles <= 0) {
+            return handle;
+        }
+
+        synchronized (this) {
+            FileHandle cached = handles.get(serverPath);
+            if (cached == null || cached.getVersion() != version) {
+                if (cached != null) {
+                    cached.release();
+                }
+                handle.acquire();
+                handle.setDeadline(System.currentTimeMillis() + idleTimeout);
+                handles.put(serverPath, handle);
+                evictOverflow();
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * Removes the handle of a file from the cache, when the file is replaced or deleted.
+     *
+     * @param serverPath The path of the file on the server.
+     * @return The handle removed, with the reference the cache held passed on to the caller, or
+     *         null if the file had no cached handle.
+     */
+    public synchronized FileHandle invalidate(String serverPath) {
+        return handles.remove(serverPath);
+    }
+
+    /**
+     * Closes the least recently used handles beyond the size of the cache.
+     */
+    private void evictOverflow() {
+        Iterator<FileHandle> iterator = handles.values().iterator();
+        while (handles.size() > maxHandles && iterator.hasNext()) {
+            FileHandle eldest = iterator.next();
+            iterator.remove();
+            eldest.release();
+        }
+    }
+
+    /**
+     * Closes the handles left unused for longer than the idle timeout.
+     */
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, FileHandle>> iterator = handles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            FileHandle handle = iterator.next().getValue();
+            if (handle.getDeadline() > now) {
+                break; // the rest were used more recently
+            }
+            iterator.remove();
+            handle.release();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Represents a download of one file version that is currently in progress on the proxy.
+ * The first client that misses on a (path, version) pair becomes the leader and performs
+ * the transfer; later clients missing on the same pair attach to this object and wait for
+ * the leader's result instead of issuing their own chunk downloads.
+ *
+ * @author Zijie Huang
+ */
+public class InFlightDownload {
+
+    /**
+     * The path in cache of the file version being downloaded.
+     */
+    private final String cachePath;
+
+    /**
+     * Released once the download has finished, successfully or not.
+     */
+    private final CountDownLatch done;
+
+    /**
+     * The result of the download, set by the leader.
+     */
+    private volatile CacheFile result;
+
+    /**
+     * Constructs an InFlightDownload for the specified file version.
+     *
+     * @param cachePath The path in cache of the file version being downloaded.
+     */
+    public InFlightDownload(String cachePath) {
+        this.cachePath = cachePath;
+        this.done = new CountDownLatch(1);
+    }
+
+    /**
+     * Publishes the result of the download and wakes up all waiting clients.
+     *
+     * @param result The CacheFile returned by the download, marked as not valid on failure.
+     */
+    public void complete(CacheFile result) {
+        this.result = result;
+        done.countDown();
+    }
+
+    /**
+     * Blocks until the download has finished.
+     *
+     * @return The CacheFile returned by the download, or null if the wait was interrupted.
+     */
+    public CacheFile await() {
+        try {
+            done.await();
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted when waiting for download of: " + cachePath);
+            return null;
+        }
+    }
+
+    /* Getters for download properties. */
+    public String getCachePath() {
+        return cachePath;
+    }
+}
@@ -0,0 +1,20 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * This interface is implemented by the proxies to receive lease breaks from the server. A proxy
+ * holding a lease on a file version opens it from its cache without asking the server; the
+ * server calls back before a new version of the file is published or the file is deleted.
+ *
+ * @author Zijie Huang
+ */
+interface LeaseCallback extends Remote {
+
+    /**
+     * Breaks the lease held on a file, so that the next open of it goes to the server.
+     *
+     * @param path The path of the file, as the proxy named it when the lease was granted.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    void breakLease(String path) throws RemoteException;
+}
@@ -0,0 +1,110 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the leases granted to the proxy by the server. While a lease on a file is valid, the
+ * server promises to call {@link #breakLease(String)} before publishing a new version of the
+ * file or deleting it, so opens of the leased version can be served from the cache with no
+ * round trip. Leases also expire on their own after the term granted, which bounds how long a
+ * lost break can go unnoticed. Leased files are also recorded as existing regular files in the
+ * proxy's {@link AttributeCache}, and breaks drop them from it.
+ *
+ * @author Zijie Huang
+ */
+public class LeaseTable implements LeaseCallback {
+
+    /**
+     * The leased file versions, keyed by path.
+     */
+    private final Map<String, RPCFile> leases = new ConcurrentHashMap<>();
+
+    /**
+     * The expiry of each lease, in System.nanoTime() units, keyed by path.
+     */
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+
+    /**
+     * The number of breaks received so far, used to discard grants that raced with a break.
+     */
+    private final AtomicLong breaks = new AtomicLong();
+
+    /**
+     * The attribute cache kept in step with the leases.
+     */
+    private final AttributeCache attributes;
+
+    /**
+     * Constructs a LeaseTable.
+     *
+     * @param attributes The attribute cache kept in step with the leases.
+     */
+    public LeaseTable(AttributeCache attributes) {
+        this.attributes = attributes;
+    }
+
+    /**
+     * Returns the current break epoch, to be taken before asking the server for a lease.
+     *
+     * @return The number of breaks received so far.
+     */
+    public long epoch() {
+        return breaks.get();
+    }
+
+    /**
+     * Records a lease granted by the server. The lease is dropped if any break has arrived since
+     * the request was sent, since that break may have been meant for this very lease.
+     *
+     * @param path      The path of the file.
+     * @param version   The leased version.
+     * @param expiry    When the lease expires, in System.nanoTime() units, counted from the time
+     *                  the request was sent so that it never outlasts the server's view.
+     * @param epoch     The break epoch taken before the request was sent.
+     */
+    public synchronized void grant(String path, int version, long expiry, long epoch) {
+        if (breaks.get() != epoch) {
+            return;
+        }
+        leases.put(path, new RPCFile(path, version));
+        expiries.put(path, expiry);
+        attributes.putExisting(path, false);
+    }
+
+    /**
+     * Looks up a valid lease on a file.
+     *
+     * @param path The path of the file.
+     * @return The leased version, or -1 if the file is not leased or the lease has expired.
+     */
+    public int lookup(String path) {
+        RPCFile lease = leases.get(path);
+        Long expiry = expiries.get(path);
+        if (lease == null || expiry == null || System.nanoTime() - expiry >= 0) {
+            return -1;
+        }
+        return lease.getVersion();
+    }
+
+    @Override
+    public synchronized void breakLease(String path) {
+        breaks.incrementAndGet();
+        leases.remove(path);
+        expiries.remove(path);
+        attributes.invalidate(path);
+        System.err.println("Lease on " + path + " is broken");
+    }
+
+    /**
+     * Breaks every lease held, when the breaks sent by the server may have been lost.
+     */
+    public synchronized void breakAll() {
+        breaks.incrementAndGet();
+        for (String path : leases.keySet()) {
+            attributes.invalidate(path);
+        }
+        leases.clear();
+        expiries.clear();
+        System.err.println("All leases are broken");
+    }
+}
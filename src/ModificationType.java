@@ -6,5 +6,5 @@
 public enum ModificationType {
     INCREMENT_REF_COUNT,
     DECREMENT_REF_COUNT,
-    RESET_LRU_COUNT,
+    TOUCH,
 }
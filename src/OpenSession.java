@@ -0,0 +1,71 @@
+/**
+ * Represents a file version opened by a client for download. The open validates the path once
+ * and records what the chunk downloads need: the version, the size, and a handle on the file.
+ * The downloads then name the session by its id instead of the path, and are served from the
+ * handle without checking the path again. A session ends when it is left idle for too long or
+ * when its file is replaced or deleted.
+ *
+ * @author Zijie Huang
+ */
+public class OpenSession {
+
+    /**
+     * Open session properties.
+     */
+    private final long id;
+    private final FileHandle handle;
+    private final long size;
+    private volatile long lastActivity;
+
+    /**
+     * Constructs an OpenSession, taking over a reference on the handle of the file.
+     *
+     * @param id     The id of the session.
+     * @param handle The handle on the opened version of the file.
+     * @param size   The size of the file in bytes.
+     */
+    public OpenSession(long id, FileHandle handle, long size) {
+        this.id = id;
+        this.handle = handle;
+        this.size = size;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a reference on the handle of the file for a download, and records the activity.
+     *
+     * @return The handle, to be released by the caller, or null if the session has been closed.
+     */
+    public FileHandle acquire() {
+        lastActivity = System.currentTimeMillis();
+        return handle.acquire() ? handle : null;
+    }
+
+    /**
+     * Ends the session, releasing its reference on the handle of the file.
+     */
+    public void close() {
+        handle.release();
+    }
+
+    /* Getters for open session properties. */
+    public long getId() {
+        return id;
+    }
+
+    public String getServerPath() {
+        return handle.getServerPath();
+    }
+
+    public int getVersion() {
+        return handle.getVersion();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+}
@@ -49,6 +49,16 @@ public class PathHandler {
         return concat(path, rootDir) + "_v" + version;
     }
 
+    /**
+     * Generates the path in the cache shared by all the versions of a file, without the version suffix.
+     * 
+     * @param path The original file path.
+     * @return A string representing the unversioned path in the cache.
+     */
+    public String getPathInCache(String path) {
+        return concat(path, rootDir);
+    }
+
     /**
      * Generates a unique temporary path in the cache for a given file and version number, ensuring
      * that the path does not collide with existing files.
@@ -1,19 +1,31 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The Proxy class serves as an intermediary between clients and a remote server, handling
@@ -35,6 +47,94 @@ class Proxy {
      */
     private static String cachedir;
 
+    /**
+     * Whether open returns as soon as the first chunk of a file is cached while the remaining
+     * chunks are downloaded in the background. Disable with -Dproxy.streaming=false.
+     */
+    private static final boolean STREAMING
+        = Boolean.parseBoolean(System.getProperty("proxy.streaming", "true"));
+
+    /**
+     * Whether only the chunks touched by reads, plus a readahead window, are downloaded into
+     * the cache. When disabled with -Dproxy.partial=false, whole files are filled in the background.
+     */
+    private static final boolean PARTIAL
+        = Boolean.parseBoolean(System.getProperty("proxy.partial", "true"));
+
+    /**
+     * The minimum number of chunks downloaded in the background ahead of a reader with partial caching.
+     */
+    private static final int READAHEAD = Integer.getInteger("proxy.readahead", 4);
+
+    /**
+     * The window of chunk requests kept in flight by the download pipeline. It starts at
+     * -Dproxy.window chunks and, unless -Dproxy.adaptive=false, follows the bandwidth-delay
+     * product of the link up to -Dproxy.maxwindow chunks.
+     */
+    private static final DownloadWindow window = new DownloadWindow(
+        FileHandler.CHUNK_SIZE,
+        Integer.getInteger("proxy.window", 4),
+        Integer.getInteger("proxy.maxwindow", 32),
+        Boolean.parseBoolean(System.getProperty("proxy.adaptive", "true")));
+
+    /**
+     * The executor running background chunk transfers.
+     */
+    private static final ExecutorService transfers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "chunk-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Whether close installs a written file in the cache and returns without uploading it, leaving
+     * the upload to a background write-back queue. Enable with -Dproxy.writeback=true.
+     */
+    private static final boolean WRITE_BACK
+        = Boolean.parseBoolean(System.getProperty("proxy.writeback", "false"));
+
+    /**
+     * The queue of written versions waiting to be uploaded to the server.
+     */
+    private static WriteBackQueue writeBack;
+
+
+    /**
+     * The most bytes of small files the cache also keeps in memory, set with -Dproxy.memtier.
+     * Files held in memory are read without opening the cache file. 0 disables the memory tier.
+     */
+    private static final int MEMORY_TIER_SIZE = Integer.getInteger("proxy.memtier", 0);
+
+    /**
+     * Whether the proxy takes leases on the files it reads, so that opens of leased files are
+     * served from the cache without asking the server. Disable with -Dproxy.leases=false.
+     */
+    private static final boolean LEASES
+        = Boolean.parseBoolean(System.getProperty("proxy.leases", "true"));
+
+    /**
+     * The leases held by this proxy.
+     */
+    private static LeaseTable leases;
+
+    /**
+     * How long the proxy trusts the cached attributes of existing and missing files, in
+     * milliseconds, set with -Dproxy.attrttl and -Dproxy.negttl; 0 disables caching them.
+     */
+    private static final long ATTRIBUTE_TTL = Long.getLong("proxy.attrttl", 1000);
+    private static final long NEGATIVE_TTL = Long.getLong("proxy.negttl", 1000);
+
+    /**
+     * The cached attributes of the files on the server.
+     */
+    private static AttributeCache attributes;
+
+    /**
+     * The downloads in progress, keyed by the path in cache of the file version being downloaded.
+     */
+    private static final Map<String, InFlightDownload> downloads
+        = new ConcurrentHashMap<String, InFlightDownload>();
+
     /**
      * The server IP address and port number.
      */
@@ -54,12 +154,6 @@ class Proxy {
          */
         private static final int EIO = -100;
 
-        /**
-         * The mode for read and write.
-         */
-        private static final int MODE_R = 1;
-        private static final int MODE_RW = 2;
-
         /**
          * The chunk size used for file transfer in bytes.
          */
@@ -103,22 +197,15 @@ class Proxy {
 		public int open(String path, OpenOption o) {
             System.err.println("open: " + path + " " + o);
 			try {
-                int fd; 
-                synchronized (cache) {
-                    cache.updateLRU();
-                
-                    /* get all the chunks of the file */
-                    CacheFile cacheFile = fetch(serverip, port, path, o);
-
-                    if (!cacheFile.isValid()) {
-                        System.err.println("return status code: " + cacheFile.getStatusCode());
-                        return cacheFile.getStatusCode();
-                    }
+                /* get all the chunks of the file */
+                CacheFile cacheFile = fetch(serverip, port, path, o);
 
-                    fd = handleFd(cacheFile, path);
+                if (!cacheFile.isValid()) {
+                    System.err.println("return status code: " + cacheFile.getStatusCode());
+                    return cacheFile.getStatusCode();
                 }
 
-                return fd;
+                return handleFd(cacheFile, path, o);
 			} catch (IOException e) {
 				return EIO;
 			} finally {
@@ -128,7 +215,9 @@ class Proxy {
 
         /**
          * Close the file with the given file descriptor.
-         * If the file is modified, upload it to the server.
+         * If the file is modified, upload it to the server. In write-back mode the upload is
+         * queued instead, but close still makes one round trip to reserve the new version, so
+         * that opens on the server wait for it; the leases on the file are broken in the background.
          * 
          * @param fd the file descriptor of the file to close
          * @return 0 if the file is closed successfully, otherwise an error code
@@ -141,7 +230,6 @@ class Proxy {
             String originPath = tmpFile.getPath();
             String tmpPath = tmpFile.getTmpPath();
             String cachePath = tmpFile.getCachePath();
-            int latestVersion = Integer.MIN_VALUE;
 
 			try {
                 if (raf == null && permission == null) { // file does not exist
@@ -153,44 +241,49 @@ class Proxy {
                     raf.close();
                 }
 
-                synchronized (cache) {
-                    if (writeFlag == 1) { // write close
-                        latestVersion = rpcHandler.getFileVersion(serverip, port, originPath) + 1;
-                        String latestCachePath = pathHandler.getPathInCache(originPath, latestVersion);
-                        Files.copy(Paths.get(tmpPath), Paths.get(latestCachePath));
-                        int size = (int) Files.size(Paths.get(latestCachePath));
-                        CacheFile latestCacheFile = new CacheFile(latestCachePath, latestVersion, size);
-                        cache.put(latestCacheFile);
-
-                        /* update the old cache file to stale */
-                        if (cache.isFileExist(cachePath)) {
-                            CacheFile oldCacheFile = cache.getCacheFile(cachePath);
-                            oldCacheFile.setStale(true);
+                int res = 0;
+                if (writeFlag == 1) { // write close
+                    writeFlag = 0;
+                    if (WRITE_BACK) {
+                        int latestVersion = rpcHandler.reserveVersion(serverip, port, originPath);
+                        if (latestVersion < 0) {
+                            res = EIO;
+                        } else {
+                            CacheFile latestCacheFile = installVersion(originPath, tmpPath, cachePath, latestVersion, true);
+                            writeBack.enqueue(originPath, latestCacheFile);
+                        }
+                    } else {
+                        /* the server assigns the version when the upload commits */
+                        int latestVersion = rpcHandler.upload(serverip, port, originPath, tmpPath, 0);
+                        if (latestVersion < 0) {
+                            res = EIO;
+                        } else {
+                            installVersion(originPath, tmpPath, cachePath, latestVersion, false);
                         }
-                        
-                        /* delete the tmp file */
+                    }
+                    if (res == 0) {
+                        attributes.putExisting(originPath, false);
+                    } else {
+                        /* the write is lost, but the proxy and the other clients carry on */
+                        System.err.println("Error when publishing " + originPath + ", dropping the write");
                         if (Files.exists(Paths.get(tmpPath))) {
-                            System.err.println("deleting tmp file: " + tmpPath);
                             cache.decrementSize(Files.size(Paths.get(tmpPath)));
                             Files.delete(Paths.get(tmpPath));
                         }
-
-                        rpcHandler.upload(serverip, port, originPath, latestCacheFile);
-                        writeFlag = 0;
                     }
+                }
 
-                    if (cache.isFileExist(cachePath)) {
-                        CacheFile cacheFile = cache.getCacheFile(cachePath);
-                        System.err.println("The ref count of " + cacheFile.getPath() + " is " + cacheFile.getRefCount() + " before decrement");
-                        cache.decrementRefCount(cacheFile);
-                        cache.resetLRU(cacheFile);
-                        /* clean up stale cache files */
-                        String pathWithOutVersion = pathHandler.extractOriginalFileName(cacheFile.getPath());
-                        cache.clearStaleFiles(pathWithOutVersion);
-                    }
+                CacheFile cacheFile = tmpFile.getCacheFile();
+                if (cacheFile != null && cacheFile.getRefCount() > 0) {
+                    System.err.println("The ref count of " + cacheFile.getPath() + " is " + cacheFile.getRefCount() + " before decrement");
+                    cache.decrementRefCount(cacheFile);
+                    cache.touch(cacheFile);
+                    /* clean up stale cache files */
+                    String pathWithOutVersion = pathHandler.extractOriginalFileName(cacheFile.getPath());
+                    cache.clearStaleFiles(pathWithOutVersion);
                 }
 
-                return 0;
+                return res;
 			} catch (IOException e) {
                 System.err.println("I/O error when closing file: " + e.toString());
 				return EIO;
@@ -218,11 +311,9 @@ class Proxy {
                     return Errors.EBADF;
                 }
 
-                synchronized (cache) {
-                    if (size + buf.length > cache.getMaxSize()) {
-                        System.err.println("Cache is full, evicting files...");
-                        cache.evict(size + buf.length);
-                    }
+                if (size + buf.length > cache.getMaxSize()) {
+                    System.err.println("Cache is full, evicting files...");
+                    cache.evict(size + buf.length);
                 }
                 
 				raf.write(buf);
@@ -243,10 +334,16 @@ class Proxy {
          */
 		public long read(int fd, byte[] buf) {
             int bytesRead = 0;
-			RandomAccessFile raf = fdMap.get(fd).getRaf();
-            String permission = fdMap.get(fd).getPermission();
+            TmpFile tmpFile = fdMap.get(fd);
+			RandomAccessFile raf = tmpFile.getRaf();
+            String permission = tmpFile.getPermission();
+            CacheFile cacheFile = tmpFile.getCacheFile();
+            int len = buf.length;
             // log(fd, "read");
 			try {
+                if (tmpFile.getMemoryData() != null) { // file is read from memory
+                    return readMemory(tmpFile, buf);
+                }
                 if (raf == null && permission == null) { // file does not exist
                     return Errors.EBADF;
                 }
@@ -254,7 +351,19 @@ class Proxy {
                     return Errors.EISDIR;
                 }
 
-                bytesRead = raf.read(buf);
+                /* reading the cache file directly, wait for the chunk to arrive */
+                if (tmpFile.getTmpPath() == null && cacheFile != null) {
+                    ensureReadable(tmpFile, raf.getFilePointer());
+                    len = cacheFile.awaitAvailable(raf.getFilePointer(), buf.length);
+                    if (len < 0) {
+                        return EIO;
+                    }
+                    if (len == 0) { // reach the end of the file
+                        return 0;
+                    }
+                }
+
+                bytesRead = raf.read(buf, 0, len);
                 if (bytesRead == -1) { // reach the end of the file
                     return 0;
                 }
@@ -274,6 +383,9 @@ class Proxy {
 		public long lseek(int fd, long pos, LseekOption o) {
 			RandomAccessFile raf = fdMap.get(fd).getRaf();
             log(fd, "lseek");
+            if (fdMap.get(fd).getMemoryData() != null) { // file is read from memory
+                return seekMemory(fdMap.get(fd), pos, o);
+            }
 			try {
                 if (raf == null) {
                     return Errors.EBADF;
@@ -307,20 +419,39 @@ class Proxy {
          * @return 0 if the file is removed successfully, or an error code
          */
 		public int unlink(String path) {
+            /* the file must not be brought back by a pending write-back */
+            if (writeBack != null && !writeBack.flush(path)) {
+                System.err.println("pending write-back of " + path + " did not finish");
+                return EIO;
+            }
 
-            if (!rpcHandler.isFileExist(serverip, port, path)) {
+            AttributeCache.Attributes cached = attributes.lookup(path);
+            boolean exists = cached != null ? cached.isExist() : rpcHandler.isFileExist(serverip, port, path);
+            if (!exists) {
                 System.err.println("file does not exist");
+                if (cached == null) {
+                    attributes.putMissing(path);
+                }
                 return Errors.ENOENT;
             }
 
-            if (rpcHandler.isDirectory(serverip, port, path)) {
+            boolean directory = cached != null ? cached.isDirectory() : rpcHandler.isDirectory(serverip, port, path);
+            if (directory) {
                 System.err.println("file is a directory");
+                if (cached == null) {
+                    attributes.putExisting(path, true);
+                }
                 return Errors.EISDIR;
             }
 
             if (rpcHandler.delete(serverip, port, path)) {
                 System.err.println("unlink: " + path + " from server");
+                attributes.putMissing(path);
                 return 0;
+            } else if (cached != null) {
+                /* the cached attributes may be stale, so ask the server why */
+                attributes.invalidate(path);
+                return unlink(path);
             } else {
                 System.err.println("permission denied");
                 return Errors.EPERM;
@@ -350,100 +481,647 @@ class Proxy {
         }
 
         /**
-         * Fetches the specified file from a remote server and caches it locally. This method handles
-         * the retrieval of file chunks sequentially from the server, combining them into a single
-         * local file in the cache. If the file already exists in the cache and is up to date, it
-         * increases its reference count instead of fetching it again. This method ensures that the
-         * cache does not exceed its size limit by evicting LRU files if necessary.
+         * Fetches the specified file from a remote server and caches it locally. The file is first
+         * opened on the server, which returns its status, version and size. If that version already exists in the
+         * cache, it is pinned and returned right away; otherwise the file is downloaded once for all
+         * concurrent openers by {@link #fetchVersion(String, ChunkFile)}. No global lock is
+         * held across the RPC calls, so cache hits of other clients can proceed while a miss is still
+         * being transferred.
          *
          * @param serverip The IP address of the server from which to fetch the file.
          * @param port The port number on the server to connect to.
          * @param path The path of the file on the server to be fetched.
          * @param o The open option indicating how the file should be opened.
-         * @return A CacheFile object representing the cached file, or null if the file does not exist
-         *         on the server or could not be fetched for some other reason. The CacheFile object
-         *         contains metadata about the file, including its path in the cache, its version, and
-         *         its total size.
-         * @throws IOException If an I/O error occurs while fetching the file, creating directories in
-         *         the cache, or writing the file data to the cache.
+         * @return A CacheFile object representing the cached file. It is marked as not valid if the
+         *         open failed on the server or the file could not be fetched, in which case its status
+         *         code holds the error. The CacheFile object contains metadata about the file, including
+         *         its path in the cache, its version, and its total size. It may be shared with other
+         *         opens of the same version, so nothing about this open is recorded in it.
          */
         private CacheFile fetch(String serverip, int port, String path, OpenOption o) {
-            int chunkNum = 0;
-            int offset = 0;
-            boolean fileOpened = false;
-            RandomAccessFile raf = null;
-            CacheFile cacheFile = null;
-            ChunkFile chunkFile = null;
-            boolean isFirstFetch = true; // The first chunk will not contain any file data
+            CacheFile cacheFile;
 
-            try {
-                do {
-                    System.err.println("isFirstFetch: " + isFirstFetch);
-                    System.err.println("Fetching chunk " + chunkNum + "...");
-                    chunkFile = rpcHandler.download(serverip, port, path, chunkNum, o, isFirstFetch);
-
-                    if (chunkFile.isValid() && chunkFile.isExsit()) {
-                        
-                        if (!fileOpened) {
-                            /* file exists in cache */
-                            String cachePath = pathHandler.getPathInCache(path, chunkFile.getVersion());
-                            if (cache.isFileExist(cachePath)) {
-                                System.err.println("file: " + cachePath + " exists in cache CACHE HIT");
-                                cacheFile = cache.getCacheFile(cachePath);
-                                cache.incrementRefCount(cacheFile);
-                                break;
-                            }
-
-                            if (!isFirstFetch) {
-                                long totalSize = chunkFile.getTotalSize();
-                                cacheFile = new CacheFile(cachePath, chunkFile.getVersion(), (int) totalSize);
-
-                                /* evict if cache is full */
-                                if (cache.isFull(totalSize)) {
-                                    System.err.println("Cache is full, evicting files...");
-                                    cache.evict(totalSize);
-                                }
-                                
-                                /* clear the stale files in cache and put the new file to cache */
-                                String pathWithOutVersion = pathHandler.extractOriginalFileName(cacheFile.getPath());
-                                cache.setStaleFiles(pathWithOutVersion);
-                                cache.clearStaleFiles(pathWithOutVersion);
-                                cache.put(cacheFile);
-                                cache.incrementRefCount(cacheFile);
-
-                                Files.createDirectories(Paths.get(cachePath).getParent());
-                                raf = new RandomAccessFile(Paths.get(cachePath).toFile(), "rw");
-                                fileOpened = true;
-                            }
-                        }
+            /* serve the version closed on this proxy but not written back yet */
+            CacheFile pending = writeBack == null ? null : writeBack.getPending(path);
+            if (pending != null) {
+                if (o == OpenOption.CREATE_NEW) {
+                    return invalidFile(Errors.EEXIST);
+                }
+                cacheFile = cache.acquire(pending.getPath());
+                if (cacheFile != null) {
+                    System.err.println("file: " + cacheFile.getPath() + " is pending write-back CACHE HIT");
+                    return cacheFile;
+                }
+            }
+
+            /* a path recently found missing is not looked up again */
+            if (o == OpenOption.READ || o == OpenOption.WRITE) {
+                AttributeCache.Attributes cached = attributes.lookup(path);
+                if (cached != null && !cached.isExist()) {
+                    System.err.println("file: " + path + " is cached as missing");
+                    return invalidFile(Errors.ENOENT);
+                }
+            }
+
+            /* a leased version is opened from cache without asking the server */
+            if (leases != null && o == OpenOption.READ) {
+                int leasedVersion = leases.lookup(path);
+                if (leasedVersion >= 0) {
+                    cacheFile = cache.acquire(pathHandler.getPathInCache(path, leasedVersion));
+                    if (cacheFile != null) {
+                        System.err.println("file: " + cacheFile.getPath() + " is leased CACHE HIT");
+                        return cacheFile;
+                    }
+                }
+            }
+
+            /* open on the server, getting the first chunk too unless its version is cached */
+            int cachedVersion = cache.getLatestVersion(pathHandler.getPathInCache(path));
+            long sentAt = System.nanoTime();
+            long epoch = leases == null ? 0 : leases.epoch();
+            ChunkFile chunkFile = rpcHandler.open(serverip, port, path, o, cachedVersion);
+            if (chunkFile == null) {
+                System.err.println("Error: no response from server");
+                return invalidFile(EIO);
+            }
+            if (leases != null && chunkFile.getLeaseTerm() > 0) {
+                /* count the term from the request, so the lease ends before the server's does */
+                long expiry = sentAt + TimeUnit.MILLISECONDS.toNanos(chunkFile.getLeaseTerm());
+                leases.grant(path, chunkFile.getVersion(), expiry, epoch);
+            }
+
+            if (!chunkFile.isValid()) {
+                System.err.println("file is not valid");
+                if (chunkFile.getStatusCode() == Errors.ENOENT) {
+                    attributes.putMissing(path);
+                }
+                return invalidFile(chunkFile.getStatusCode());
+            }
+
+            /* the open may have created the file, so a cached miss of it no longer holds */
+            AttributeCache.Attributes cached = attributes.lookup(path);
+            if (cached != null && !cached.isExist()) {
+                attributes.invalidate(path);
+            }
+
+            if (!chunkFile.isExsit()) {
+                System.err.println("file does not exist in server");
+                String cachePath = pathHandler.getPathInCache(path, 0);
+                cacheFile = new CacheFile(cachePath);
+            } else {
+                cacheFile = fetchVersion(path, chunkFile);
+            }
+            return cacheFile;
+        }
+
+        /**
+         * Returns the pinned CacheFile of the given file version, downloading it if it is not cached.
+         * Concurrent misses on the same version are coalesced: the first client registers an
+         * {@link InFlightDownload} and starts the transfer, while later clients wait until the file is
+         * installed in the cache and then pin it, reading the chunks already present instead of issuing
+         * duplicate chunk downloads.
+         *
+         * @param path The path of the file on the server.
+         * @param opened The reply of the server to the open, with the version and size of the file
+         *               and possibly its first chunk.
+         * @return The pinned CacheFile of the version, or a CacheFile marked as not valid with an
+         *         {@link #EIO} status code if the download failed.
+         */
+        private CacheFile fetchVersion(String path, ChunkFile opened) {
+            String cachePath = pathHandler.getPathInCache(path, opened.getVersion());
 
-                        if (!isFirstFetch) {
-                            raf.seek(offset);
-                            raf.write(chunkFile.getData());
-                            chunkNum++;
-                            offset = chunkNum * CHUNK_SIZE;
+            while (true) {
+                /* file exists in cache */
+                CacheFile cacheFile = cache.acquire(cachePath);
+                if (cacheFile != null) {
+                    System.err.println("file: " + cachePath + " exists in cache CACHE HIT");
+                    if (opened.getSessionId() != 0) {
+                        cacheFile.setSessionId(opened.getSessionId());
+                    }
+                    return cacheFile;
+                }
+
+                InFlightDownload flight = new InFlightDownload(cachePath);
+                InFlightDownload existing = downloads.putIfAbsent(cachePath, flight);
+                if (existing == null) {
+                    try {
+                        /* another leader may have installed the file before we registered */
+                        cacheFile = cache.acquire(cachePath);
+                        if (cacheFile == null) {
+                            cacheFile = download(path, opened);
                         }
+                    } finally {
+                        downloads.remove(cachePath, flight);
+                        flight.complete(cacheFile);
+                    }
+                    return cacheFile;
+                }
 
-                        isFirstFetch = false;
-                    } else if (!chunkFile.isValid()) {
-                        System.err.println("file is not valid");
-                        cacheFile = new CacheFile(null);
-                        cacheFile.setValid(false);
-                    } else if (!chunkFile.isExsit()) {
-                        System.err.println("file does not exist in server");
-                        String cachePath = pathHandler.getPathInCache(path, 0);
-                        cacheFile = new CacheFile(cachePath);
-                    } else {
-                        System.err.println("Error: unknown error");
+                System.err.println("file: " + cachePath + " is being downloaded, waiting for it");
+                CacheFile result = existing.await();
+                if (result == null || !result.isValid()) {
+                    return invalidFile(EIO);
+                }
+                /* retry if the downloaded file got evicted before we could pin it */
+            }
+        }
+
+        /**
+         * Downloads a file version into the cache. The first chunk, which normally arrives with the open
+         * reply, is stored and the file is installed in the cache as a sparse file before this method
+         * returns, so that it can be opened right away.
+         * With partial caching, further chunks are only fetched when read (plus a readahead window);
+         * otherwise the remaining chunks are filled in by a background transfer. When streaming is
+         * disabled, the whole file is downloaded before returning. Neither the chunk transfers nor the
+         * disk writes hold any cache lock.
+         *
+         * @param path The path of the file on the server to be downloaded.
+         * @param opened The reply of the server to the open, with the version and size of the file
+         *               and possibly its first chunk.
+         * @return The pinned CacheFile of the version, or a CacheFile marked as not valid with an
+         *         {@link #EIO} status code if the download failed.
+         */
+        private CacheFile download(String path, ChunkFile opened) {
+            int version = opened.getVersion();
+            long totalSize = opened.getTotalSize();
+            String cachePath = pathHandler.getPathInCache(path, version);
+
+            /* the first chunk normally comes with the open reply */
+            ChunkFile chunkFile = opened;
+            if (!isChunkOf(chunkFile, version)) {
+                System.err.println("Fetching chunk 0...");
+                chunkFile = rpcHandler.downloadRange(serverip, port, path, version, 0, CHUNK_SIZE);
+            }
+            if (!isChunkOf(chunkFile, version)) {
+                System.err.println("Failed to download chunk 0 of " + path);
+                return invalidFile(EIO);
+            }
+
+            /* small files come whole with the open reply and are installed in a single write */
+            if (chunkFile.getData().length == totalSize) {
+                return installWhole(path, cachePath, version, chunkFile.getData());
+            }
+
+            /* create the sparse cache file before it can be found in cache; this download holds the
+               version in the registry of downloads, so no cached entry can be using the file */
+            try {
+                Files.createDirectories(Paths.get(cachePath).toAbsolutePath().getParent());
+                Files.deleteIfExists(Paths.get(cachePath));
+                try (RandomAccessFile raf = new RandomAccessFile(cachePath, "rw")) {
+                    raf.setLength(totalSize);
+                }
+            } catch (IOException e) {
+                System.err.println("I/O error when creating cache file: " + e.toString());
+                return invalidFile(EIO);
+            }
+
+            /* clear the stale files in cache and put the new file to cache */
+            CacheFile cacheFile = new CacheFile(cachePath, version, (int) totalSize, false);
+            cacheFile.setSessionId(opened.getSessionId());
+            String pathWithOutVersion = pathHandler.extractOriginalFileName(cachePath);
+            CacheFile installed = cache.install(cacheFile, pathWithOutVersion);
+            if (installed != cacheFile) {
+                return installed;
+            }
+
+            /* store the first chunk */
+            cacheFile.claimChunks(0, 1);
+            if (!storeChunk(cacheFile, 0, chunkFile.getData())) {
+                failDownload(cacheFile);
+                cache.decrementRefCount(cacheFile);
+                return invalidFile(EIO);
+            }
+
+            int chunkCount = cacheFile.getChunkCount();
+            if (!STREAMING) {
+                if (!loadChunks(cacheFile, path, 1, chunkCount)) {
+                    cache.decrementRefCount(cacheFile);
+                    return invalidFile(EIO);
+                }
+            } else if (PARTIAL) {
+                prefetch(cacheFile, path, 1, 1 + readahead());
+            } else {
+                prefetch(cacheFile, path, 1, chunkCount);
+            }
+            return cacheFile;
+        }
+
+        /**
+         * Installs a file received whole into the cache: the file is written in one go before the
+         * entry is installed, its space is reserved at once, and it is marked complete, so no chunk
+         * bookkeeping or background transfer is needed. The content is also kept in the memory tier
+         * if there is room for it.
+         *
+         * @param path The path of the file on the server.
+         * @param cachePath The path in cache of the version.
+         * @param version The version of the file.
+         * @param data The whole content of the file.
+         * @return The pinned CacheFile of the version, or a CacheFile marked as not valid with an
+         *         {@link #EIO} status code if it could not be stored.
+         */
+        private CacheFile installWhole(String path, String cachePath, int version, byte[] data) {
+            try {
+                Files.createDirectories(Paths.get(cachePath).toAbsolutePath().getParent());
+                Files.write(Paths.get(cachePath), data);
+            } catch (IOException e) {
+                System.err.println("I/O error when writing cache file: " + e.toString());
+                return invalidFile(EIO);
+            }
+
+            CacheFile cacheFile = new CacheFile(cachePath, version, data.length, false);
+            String pathWithOutVersion = pathHandler.extractOriginalFileName(cachePath);
+            CacheFile installed = cache.install(cacheFile, pathWithOutVersion);
+            if (installed != cacheFile) {
+                return installed;
+            }
+            if (!cache.reserveChunk(cacheFile, data.length)) {
+                failDownload(cacheFile);
+                cache.decrementRefCount(cacheFile);
+                return invalidFile(EIO);
+            }
+            cacheFile.markComplete();
+            cache.keepInMemory(cacheFile, data);
+            System.err.println("File " + path + " is installed whole with size: " + data.length);
+            return cacheFile;
+        }
+
+        /**
+         * Reads from a file held in the memory tier, at the position of the descriptor.
+         *
+         * @param tmpFile The TmpFile of the descriptor.
+         * @param buf The buffer to read into.
+         * @return The number of bytes read, or 0 at the end of the file.
+         */
+        private long readMemory(TmpFile tmpFile, byte[] buf) {
+            byte[] data = tmpFile.getMemoryData();
+            int position = tmpFile.getPosition();
+            int len = Math.min(buf.length, Math.max(0, data.length - position));
+            System.arraycopy(data, position, buf, 0, len);
+            tmpFile.setPosition(position + len);
+            return len;
+        }
+
+        /**
+         * Moves the position of a descriptor reading from the memory tier.
+         *
+         * @param tmpFile The TmpFile of the descriptor.
+         * @param pos The position to move to, relative to the given option.
+         * @param o The option telling what the position is relative to.
+         * @return The new position, or an error code.
+         */
+        private long seekMemory(TmpFile tmpFile, long pos, LseekOption o) {
+            long position;
+            switch (o) {
+                case FROM_START:
+                    position = pos;
+                    break;
+                case FROM_CURRENT:
+                    position = tmpFile.getPosition() + pos;
+                    break;
+                case FROM_END:
+                    if (pos > 0) {
+                        return Errors.EINVAL;
+                    }
+                    position = tmpFile.getMemoryData().length + pos;
+                    break;
+                default:
+                    return Errors.EINVAL;
+            }
+            if (position < 0 || position > Integer.MAX_VALUE) {
+                return Errors.EINVAL;
+            }
+            tmpFile.setPosition((int) position);
+            return position;
+        }
+
+        /**
+         * Downloads the chunks of the given range that are neither present nor already being downloaded
+         * by another client, using range requests for the cached version. Up to a window of requests is
+         * kept in flight at once, sized by {@link #window} from the observed bandwidth-delay product,
+         * and each chunk is written at its offset as soon as it arrives, so that it becomes visible to
+         * readers regardless of the order of the other chunks. On failure the file is discarded from the
+         * cache and its readers are woken up with an error.
+         *
+         * @param cacheFile The CacheFile of the version being downloaded.
+         * @param path The path of the file on the server.
+         * @param from The first chunk of the range.
+         * @param to The chunk after the last one of the range, clipped to the chunk count.
+         * @return true if all the claimed chunks were stored; false if the download failed.
+         */
+        private boolean loadChunks(CacheFile cacheFile, String path, int from, int to) {
+            List<Integer> claimed = cacheFile.claimChunks(from, to);
+            if (claimed.size() == 1) {
+                if (!fetchChunk(cacheFile, path, claimed.get(0))) {
+                    failDownload(cacheFile);
+                    return false;
+                }
+                return true;
+            }
+
+            CompletionService<Boolean> pipeline = new ExecutorCompletionService<Boolean>(transfers);
+            Iterator<Integer> pending = claimed.iterator();
+            int inFlight = 0;
+            boolean success = true;
+            try {
+                while (pending.hasNext() || inFlight > 0) {
+                    while (success && pending.hasNext() && inFlight < window.size()) {
+                        int chunkNum = pending.next();
+                        pipeline.submit(() -> fetchChunk(cacheFile, path, chunkNum));
+                        inFlight++;
+                    }
+                    if (inFlight == 0) {
                         break;
                     }
-                } while (!chunkFile.isLastChunk());
+                    boolean stored = pipeline.take().get();
+                    inFlight--;
+                    success = success && stored;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                success = false;
+            }
+
+            if (!success) {
+                failDownload(cacheFile);
+            }
+            return success;
+        }
+
+        /**
+         * Downloads one claimed chunk of the cached version with a range request and stores it.
+         *
+         * @param cacheFile The CacheFile of the version being downloaded.
+         * @param path The path of the file on the server.
+         * @param chunkNum The number of the chunk.
+         * @return true if the chunk was stored; false otherwise.
+         */
+        private boolean fetchChunk(CacheFile cacheFile, String path, int chunkNum) {
+            long offset = (long) chunkNum * CHUNK_SIZE;
+            int length = cacheFile.getChunkSize(chunkNum);
+            System.err.println("Fetching chunk " + chunkNum + "...");
+
+            if (rpcHandler.canTransferRange()) {
+                return transferChunk(cacheFile, path, chunkNum);
+            }
+
+            long[] sent = window.onSend();
+            ChunkFile chunkFile = null;
+            long sessionId = cacheFile.getSessionId();
+            if (sessionId != 0) {
+                chunkFile = rpcHandler.downloadSession(serverip, port, sessionId, offset, length);
+                if (!isChunkOf(chunkFile, cacheFile.getVersion())) {
+                    /* the session has ended, so name the version by its path from now on */
+                    System.err.println("Open session " + sessionId + " of " + path + " has ended");
+                    cacheFile.endSession(sessionId);
+                    chunkFile = null;
+                }
+            }
+            if (chunkFile == null) {
+                chunkFile = rpcHandler.downloadRange(
+                    serverip, port, path, cacheFile.getVersion(), offset, length);
+            }
+            if (!isChunkOf(chunkFile, cacheFile.getVersion())) {
+                System.err.println("Failed to download chunk " + chunkNum + " of " + path);
+                return false;
+            }
+            window.onComplete(sent, chunkFile.getData().length);
+            return storeChunk(cacheFile, chunkNum, chunkFile.getData());
+        }
+
+        /**
+         * Downloads a claimed chunk straight into the cache file, with no copy through the heap.
+         * The space of the chunk is reserved first, since its size is known from the file size.
+         *
+         * @param cacheFile The CacheFile of the version being downloaded.
+         * @param path The path of the file on the server.
+         * @param chunkNum The number of the chunk.
+         * @return true if the chunk was stored; false otherwise.
+         */
+        private boolean transferChunk(CacheFile cacheFile, String path, int chunkNum) {
+            long offset = (long) chunkNum * CHUNK_SIZE;
+            int length = cacheFile.getChunkSize(chunkNum);
+            if (!cache.reserveChunk(cacheFile, length)) {
+                System.err.println("File " + cacheFile.getPath() + " is no longer in cache");
+                return false;
+            }
+
+            /* never re-create the file if it has been discarded in the meantime */
+            try (FileChannel channel = FileChannel.open(Paths.get(cacheFile.getPath()), StandardOpenOption.WRITE)) {
+                long[] sent = window.onSend();
+                int transferred = -1;
+                long sessionId = cacheFile.getSessionId();
+                if (sessionId != 0) {
+                    transferred = rpcHandler.transferSession(serverip, port, sessionId, offset, length, channel);
+                    if (transferred != length) {
+                        /* the session has ended, so name the version by its path from now on */
+                        System.err.println("Open session " + sessionId + " of " + path + " has ended");
+                        cacheFile.endSession(sessionId);
+                        transferred = -1;
+                    }
+                }
+                if (transferred < 0) {
+                    transferred = rpcHandler.transferRange(
+                        serverip, port, path, cacheFile.getVersion(), offset, length, channel);
+                }
+                if (transferred != length) {
+                    System.err.println("Failed to transfer chunk " + chunkNum + " of " + path);
+                    return false;
+                }
+                window.onComplete(sent, transferred);
+            } catch (IOException e) {
+                System.err.println("I/O error when opening cache file: " + e.toString());
+                return false;
+            }
+            cacheFile.markChunkPresent(chunkNum);
+            return true;
+        }
+
+        /**
+         * Downloads the given range of chunks in the background. The file stays pinned until the
+         * transfer is done, so that it cannot be evicted while chunks are still being written.
+         *
+         * @param cacheFile The CacheFile of the version being downloaded.
+         * @param path The path of the file on the server.
+         * @param from The first chunk of the range.
+         * @param to The chunk after the last one of the range, clipped to the chunk count.
+         */
+        private void prefetch(CacheFile cacheFile, String path, int from, int to) {
+            if (!cacheFile.hasUnclaimedChunks(from, to)) {
+                return;
+            }
+
+            cache.incrementRefCount(cacheFile);
+            transfers.execute(() -> {
+                try {
+                    loadChunks(cacheFile, path, from, to);
+                } finally {
+                    cache.decrementRefCount(cacheFile);
+                }
+            });
+        }
+
+        /**
+         * Writes a claimed chunk at its offset in the cache file, after reserving its space in the
+         * cache, and marks it as present.
+         *
+         * @param cacheFile The CacheFile the chunk belongs to.
+         * @param chunkNum The number of the chunk.
+         * @param data The data of the chunk.
+         * @return true if the chunk was stored; false if the file left the cache or the write failed.
+         */
+        private boolean storeChunk(CacheFile cacheFile, int chunkNum, byte[] data) {
+            if (!cache.reserveChunk(cacheFile, data.length)) {
+                System.err.println("File " + cacheFile.getPath() + " is no longer in cache");
+                return false;
+            }
+
+            /* never re-create the file if it has been discarded in the meantime */
+            try (FileChannel channel = FileChannel.open(Paths.get(cacheFile.getPath()), StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long offset = (long) chunkNum * CHUNK_SIZE;
+                while (buffer.hasRemaining()) {
+                    offset += channel.write(buffer, offset);
+                }
             } catch (IOException e) {
                 System.err.println("I/O error when writing chunk data: " + e.toString());
+                return false;
+            }
+            cacheFile.markChunkPresent(chunkNum);
+            return true;
+        }
+
+        /**
+         * Makes sure the chunk containing the given position of a file read straight from the cache
+         * is present, downloading it if needed, and keeps a readahead window of chunks after it
+         * downloading in the background.
+         *
+         * @param tmpFile The TmpFile of the file being read.
+         * @param pos The position the client is reading from.
+         */
+        private void ensureReadable(TmpFile tmpFile, long pos) {
+            CacheFile cacheFile = tmpFile.getCacheFile();
+            if (pos >= cacheFile.getSize() || cacheFile.isComplete()) {
+                return;
+            }
+
+            int chunkNum = (int) (pos / CHUNK_SIZE);
+            if (!cacheFile.isChunkPresent(chunkNum)) {
+                loadChunks(cacheFile, tmpFile.getPath(), chunkNum, chunkNum + 1);
+            }
+            if (PARTIAL) {
+                prefetch(cacheFile, tmpFile.getPath(), chunkNum + 1, chunkNum + 1 + readahead());
+            }
+        }
+
+        /**
+         * Returns the number of chunks to download ahead of a reader, which is at least the current
+         * download window so that sequential readers keep the pipeline full.
+         *
+         * @return The readahead in chunks.
+         */
+        private int readahead() {
+            return Math.max(READAHEAD, window.size());
+        }
+
+        /**
+         * Marks the download of a file version as failed and removes it from the cache.
+         *
+         * @param cacheFile The CacheFile whose download failed.
+         */
+        private void failDownload(CacheFile cacheFile) {
+            cacheFile.fail();
+            cache.discard(cacheFile);
+        }
+
+        /**
+         * Checks whether a downloaded chunk carries data of the expected file version.
+         *
+         * @param chunkFile The chunk returned by the server, possibly null.
+         * @param version The expected version of the file.
+         * @return true if the chunk is valid and belongs to the version; false otherwise.
+         */
+        private boolean isChunkOf(ChunkFile chunkFile, int version) {
+            return chunkFile != null
+                && chunkFile.getData() != null
+                && chunkFile.isValid()
+                && chunkFile.isExsit()
+                && chunkFile.getVersion() == version;
+        }
+
+        /**
+         * Creates a CacheFile marked as not valid that carries the given error code.
+         *
+         * @param statusCode The error code to return to the client.
+         * @return The invalid CacheFile.
+         */
+        private CacheFile invalidFile(int statusCode) {
+            CacheFile cacheFile = new CacheFile(null);
+            cacheFile.setValid(false);
+            cacheFile.setStatusCode(statusCode);
+            return cacheFile;
+        }
+
+        /**
+         * Installs the content written by a client as a new version of the file in the cache, marks
+         * the version it was based on as stale, and deletes the temporary file. The version is held
+         * in the registry of downloads while it is installed, so that it is never written by an open
+         * downloading the same version at the same time; a download already under way is waited for
+         * and its file kept.
+         *
+         * @param originPath The original path of the file.
+         * @param tmpPath The path of the temporary file holding the written content.
+         * @param cachePath The path in cache of the version the write was based on.
+         * @param version The version to install.
+         * @param pinned Whether the new version is pinned, so that it cannot be evicted before upload.
+         * @return The CacheFile of the new version.
+         * @throws IOException If the temporary file cannot be copied into the cache.
+         */
+        private CacheFile installVersion(String originPath, String tmpPath, String cachePath, int version, boolean pinned)
+            throws IOException {
+            String latestCachePath = pathHandler.getPathInCache(originPath, version);
+            InFlightDownload flight = new InFlightDownload(latestCachePath);
+            InFlightDownload existing;
+            while ((existing = downloads.putIfAbsent(latestCachePath, flight)) != null) {
+                System.err.println("file: " + latestCachePath + " is being downloaded, waiting for it");
+                existing.await();
+            }
+
+            CacheFile latestCacheFile = null;
+            try {
+                if (!pinned && cache.isFileExist(latestCachePath)) {
+                    /* an open has downloaded the version since its upload committed */
+                    latestCacheFile = cache.getCacheFile(latestCachePath);
+                } else {
+                    /* a file left by a discarded download is no longer used by the cache */
+                    Files.copy(Paths.get(tmpPath), Paths.get(latestCachePath), StandardCopyOption.REPLACE_EXISTING);
+                    int size = (int) Files.size(Paths.get(latestCachePath));
+                    latestCacheFile = new CacheFile(latestCachePath, version, size);
+                    if (pinned) {
+                        latestCacheFile.incrementRefCount();
+                    }
+                    cache.put(latestCacheFile);
+                }
             } finally {
-                cacheFile.setStatusCode(chunkFile.getStatusCode());
-                return cacheFile;
+                downloads.remove(latestCachePath, flight);
+                flight.complete(latestCacheFile);
+            }
+
+            /* update the old cache file to stale */
+            CacheFile oldCacheFile = cache.getCacheFile(cachePath);
+            if (oldCacheFile != null) {
+                cache.setStale(oldCacheFile);
             }
+            
+            /* delete the tmp file */
+            if (Files.exists(Paths.get(tmpPath))) {
+                System.err.println("deleting tmp file: " + tmpPath);
+                cache.decrementSize(Files.size(Paths.get(tmpPath)));
+                Files.delete(Paths.get(tmpPath));
+            }
+            return latestCacheFile;
         }
 
         /**
@@ -453,13 +1131,13 @@ class Proxy {
          * 
          * @param cacheFile The CacheFile object to be accessed.
          * @param path The original path of the file.
+         * @param o The open option, which opens the file read-only if it is READ and read-write otherwise.
          * @return An integer representing the file descriptor associated with the opened file.
          * @throws IOException If an error occurs while handling the file descriptor or creating the temporary file.
          */
-        private int handleFd(CacheFile cacheFile, String path) throws IOException {
+        private int handleFd(CacheFile cacheFile, String path, OpenOption o) throws IOException {
             try {
-                int statusCode = cacheFile.getStatusCode();
-                String mode = statusCode == MODE_R ? "r" : "rw";
+                String mode = o == OpenOption.READ ? "r" : "rw";
                 int fd = fdCounter++;
                 TmpFile tmpFile = generateTmpFile(cacheFile, path, mode);
                 fdMap.put(fd, tmpFile);
@@ -493,19 +1171,23 @@ class Proxy {
                 int copySize = 0;
                 RandomAccessFile raf;
 
-                if (mode.equals("r")) {
+                if (mode.equals("r") && cacheFile.getMemoryData() != null) {
+                    raf = null; // read from the memory tier
+                } else if (mode.equals("r")) {
                     raf = new RandomAccessFile(new File(cachePath), mode);
                 } else {
                     tmpPath = pathHandler.getTmpPathInCache(originPath, cacheFile.getVersion());
 
                     if (cache.isFileExist(cachePath)) {
-                        copySize = (int) Files.size(Paths.get(cachePath));
-                        if (cache.isFull(copySize)) {
-                            System.err.println("Cache is full when creating tmp file, evicting files...");
-                            cache.evict(copySize);
+                        /* the whole file is needed for the copy */
+                        if (!loadChunks(cacheFile, originPath, 0, cacheFile.getChunkCount())
+                            || !cacheFile.awaitComplete()) {
+                            throw new IOException("Failed to download file: " + cachePath);
                         }
-                        Files.copy(Paths.get(cachePath), Paths.get(tmpPath));
+                        copySize = (int) Files.size(Paths.get(cachePath));
+                        /* reserve space for the copy, evicting if cache is full */
                         cache.incrementSize(copySize);
+                        Files.copy(Paths.get(cachePath), Paths.get(tmpPath));
                         System.err.println("tmp file created at: " + tmpPath);
                     }
                     
@@ -515,6 +1197,10 @@ class Proxy {
 
                 /* record all the info of the tmp file */
                 TmpFile tmpFile = new TmpFile(originPath, tmpPath, cachePath, mode, raf, copySize);
+                tmpFile.setCacheFile(cacheFile);
+                if (raf == null) {
+                    tmpFile.setMemoryData(cacheFile.getMemoryData());
+                }
 
                 return tmpFile;
             } catch (IOException e) {
@@ -565,6 +1251,24 @@ class Proxy {
         cachedir = args[2];
         cache = new Cache(Integer.parseInt(args[3]));
         System.err.println("The cache size is " + cache.getMaxSize());
+        cache.setMaxMemorySize(MEMORY_TIER_SIZE);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(TunedSocketFactory.stats())));
+
+        /* take leases, so that opens of unchanged files skip the server */
+        attributes = new AttributeCache(ATTRIBUTE_TTL, NEGATIVE_TTL);
+        if (LEASES) {
+            leases = new LeaseTable(attributes);
+            RPCHandler.setLeaseCallback(leases);
+        }
+
+        /* init write-back queue, or resume the uploads left by a previous run */
+        Files.createDirectories(Paths.get(cachedir));
+        String queuePath = Paths.get(cachedir, ".writeback").toString();
+        if (WRITE_BACK || WriteBackQueue.hasQueued(queuePath)) {
+            writeBack = new WriteBackQueue(cache, queuePath, serverip, port);
+            writeBack.start();
+        }
 
         /* init RPCreceiver */
         FileHandlingFactory factory = new FileHandlingFactory();
@@ -3,64 +3,162 @@ import java.rmi.RemoteException;
 
 /**
  * This interface defines the methods for downloading and uploading files remotely.
+ *
+ * Apart from the opens, which check the path and hand out its id with the result, calls name
+ * files by the 64-bit id returned by {@link #lookupFile} instead of by path. An id stays valid
+ * for as long as the server runs; calls given an id the server does not know throw a
+ * RemoteException, after which the client looks the path up again.
  * 
  * @author Zijie Huang
  */
 interface RMIInterface extends Remote {
 
     /**
-     * Downloads a specific chunk of a file located on the server.
+     * The message of the RemoteException thrown for a file id the server does not know.
+     */
+    String UNKNOWN_FILE_ID = "Unknown file id";
+
+    /**
+     * Opens a file on the server and returns everything the client needs to open it in one round
+     * trip: the status of the open, the current version and size of the file, and the first chunk
+     * of its data unless the client already has that version cached.
      *
      * @param path The path of the file on the server.
-     * @param chunkNum The chunk number to download.
      * @param o The open option indicating how the file should be accessed.
-     * @param isFirstFetch Whether this is the first time the chunk is being fetched.
-     * @return A ChunkFile object containing the data of the requested file chunk.
+     * @param cachedVersion The latest version of the file the client has cached, or -1 if none.
+     * @param clientId The id the client registered with {@link #registerClient}, or 0 if it takes no leases.
+     * @return A ChunkFile object holding the status, version, total size and id of the file, and
+     *         the data of chunk 0 if the current version differs from the cached one. For read opens
+     *         of registered clients, its lease term tells for how long the version is leased.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    ChunkFile openFile(String path, FileHandling.OpenOption o, int cachedVersion, long clientId) throws RemoteException;
+
+    /**
+     * Registers a client to take leases on the files it opens. Before a new version of a leased
+     * file is published or the file is deleted, the server breaks the lease through the callback.
+     *
+     * @param callback The callback the client receives lease breaks on.
+     * @return The id of the client, to be passed to {@link #openFile}.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    long registerClient(LeaseCallback callback) throws RemoteException;
+
+    /**
+     * Looks up the id of a file, which the other calls take instead of its path. Ids are only
+     * handed out for files that exist, or that the client is about to write. The id of a file is
+     * dropped when the file is deleted.
+     *
+     * @param path The path of the file on the server.
+     * @param create Whether the file is about to be written, so it gets an id even if it does not exist.
+     * @return The id of the file, 0 if the file does not exist and create is false, or -1 if the
+     *         path is outside the root directory of the server.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    long lookupFile(String path, boolean create) throws RemoteException;
+
+    /**
+     * Downloads a byte range of a specific version of a file located on the server. Unlike
+     * {@link #openFile}, no open processing is done, so this is meant for fetching the missing
+     * parts of a file version that has already been opened.
+     *
+     * @param fileId The id of the file.
+     * @param version The version of the file the range is requested from.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download, clipped to the end of the file.
+     * @return A ChunkFile object containing the data of the range and the current version of the
+     *         file; its data is null if the current version differs from the requested one.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    ChunkFile downloadChunk(String path, int chunkNum, FileHandling.OpenOption o, boolean isFirstFetch) throws RemoteException;
+    ChunkFile downloadRange(long fileId, int version, long offset, int length) throws RemoteException;
 
     /**
-     * Uploads a chunk of a file to the server.
+     * Downloads a byte range of the file version opened by {@link #openFile}, naming it by the id
+     * of the open session returned with the open instead of by its path, so that the path is not
+     * resolved and checked again.
      *
+     * @param sessionId The id of the open session.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download, clipped to the end of the file.
+     * @return A ChunkFile object containing the data of the range and the version of the session,
+     *         or null if the session is unknown, has expired, or its file has been replaced or deleted.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    ChunkFile downloadSession(long sessionId, long offset, int length) throws RemoteException;
+
+    /**
+     * Starts an upload session for a new version of a file. The chunks of the upload are then
+     * sent with {@link #uploadChunk(long, ChunkFile)} in any order, and the new version is
+     * committed once all of them have arrived.
+     *
+     * @param fileId The id of the file.
+     * @param version The version the file will have once the upload is committed, as reserved
+     *                with {@link #reserveVersion(long)}, or 0 to have the server assign the next
+     *                version when the upload commits.
+     * @param totalSize The total size of the new file in bytes.
+     * @return The id of the upload session, or -1 if the session could not be started.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    long beginUpload(long fileId, int version, long totalSize) throws RemoteException;
+
+    /**
+     * Uploads a chunk of a file to the server as part of an upload session. Chunks may be sent
+     * concurrently and out of order; the one completing the set commits the new version.
+     *
+     * @param uploadId The id of the upload session returned by {@link #beginUpload}.
      * @param chunkFile The ChunkFile object containing the file chunk data to upload.
+     * @return The version committed if this chunk completed the upload, 0 if the chunk was stored
+     *         and others are still missing, or -1 if the session is unknown or the write failed.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    void uploadChunk(ChunkFile chunkFile) throws RemoteException;
+    int uploadChunk(long uploadId, ChunkFile chunkFile) throws RemoteException;
 
     /**
      * Checks if a specific file exists on the server.
      *
-     * @param path The path of the file to check.
+     * @param fileId The id of the file to check.
      * @return true if the file exists; false otherwise.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    boolean isFileExist(String path) throws RemoteException;
+    boolean isFileExist(long fileId) throws RemoteException;
 
     /**
      * Determines if a given path on the server is a directory.
      *
-     * @param path The path to check.
-     * @return true if the path is a directory; false otherwise.
+     * @param fileId The id of the file to check.
+     * @return true if the file is a directory; false otherwise.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    boolean isDirectory(String path) throws RemoteException;
+    boolean isDirectory(long fileId) throws RemoteException;
 
     /**
      * Retrieves the version of a file stored on the server.
      *
-     * @param path The path of the file whose version is to be retrieved.
+     * @param fileId The id of the file whose version is to be retrieved.
      * @return The version number of the file.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    int getFileVersion(String path) throws RemoteException;
+    int getFileVersion(long fileId) throws RemoteException;
+
+    /**
+     * Allocates the next version of a file for a write that will be uploaded later, and marks
+     * that version as pending. Until it is committed or the marker expires, opens of the file
+     * wait for it, so that other clients still see the new version once the writer has closed.
+     * The leases on the file are broken in the background, so the call does not wait for their
+     * holders.
+     *
+     * @param fileId The id of the file whose version is to be allocated.
+     * @return The allocated version, or -1 if an error occurs.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    int reserveVersion(long fileId) throws RemoteException;
 
     /**
      * Deletes a file or directory from the server.
      *
-     * @param path The path of the file or directory to be deleted.
+     * @param fileId The id of the file or directory to be deleted.
      * @return true if the deletion was successful; false otherwise.
      * @throws RemoteException If a remote or network exception occurs.
      */
-    boolean delete(String path) throws RemoteException;
+    boolean delete(long fileId) throws RemoteException;
 }
@@ -12,7 +12,7 @@ public class RPCFile implements Serializable {
     /**
      * File information.
      */
-    private final String path;
+    private String path;
     private int version;
 
     /**
@@ -44,6 +44,15 @@ public class RPCFile implements Serializable {
         return path;
     }
 
+     /**
+     * Sets the path of the file, for subclasses restoring their state from a stream.
+     *
+     * @param path The file path.
+     */
+    protected void setPath(String path) {
+        this.path = path;
+    }
+
      /**
      * Returns the version of the file.
      *
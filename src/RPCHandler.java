@@ -1,12 +1,17 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.rmi.NotBoundException;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -18,12 +23,12 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * It encapsulates the complexity of RMI communication, providing a simplified interface for
  * performing file operations on a remote server.
  *
- * This class uses an RMI stub for invoking methods on the remote server, which must implement
- * the {@link RMIInterface}. It supports operations on files in chunks to optimize network usage
+ * This class uses an RMI stub, or a {@link FrameClient} when -Dproxy.transport=frame is set, for
+ * invoking methods on the remote server, which must implement the {@link RMIInterface}. It supports operations on files in chunks to optimize network usage
  * and handle large files efficiently.
  *
- * Instances of this class are initialized with the server's IP address and port number,
- * setting up the RMI connection to the remote server for subsequent file operations.
+ * Instances of this class are initialized with the server's IP address and port number, and
+ * borrow the connection to that server from a {@link ConnectionPool} shared by all of them.
  * 
  * @author Zijie Huang
  */
@@ -35,116 +40,470 @@ public class RPCHandler {
     private static final int CHUNK_SIZE = 1024 * 300;
 
     /**
-     * RMI stub for remote method invocation.
+     * The number of chunk uploads kept in flight, set with -Dproxy.uploadwindow.
      */
-    private RMIInterface stub;
+    private static final int UPLOAD_WINDOW = Math.max(1, Integer.getInteger("proxy.uploadwindow", 4));
 
     /**
-     * Server IP address.
+     * The transport used to reach the server, set with -Dproxy.transport: "rmi" (the default) or
+     * "frame" for the framed binary protocol of {@link FrameClient}.
      */
-    private String serverip;
+    private static final String TRANSPORT = System.getProperty("proxy.transport", "rmi");
 
     /**
-     * Server port.
+     * The port of the server's frame listener, set with -Dproxy.frameport; defaults to the RMI port + 1.
      */
-    private int port;
+    private static final int FRAME_PORT = Integer.getInteger("proxy.frameport", -1);
 
     /**
-     * Constructor that initializes RMI connection.
+     * The number of times a connection to the server is dialed before a call gives up, set with
+     * -Dproxy.connectattempts, and the delay before the second attempt in milliseconds, doubling
+     * for each attempt after, set with -Dproxy.connectbackoff.
+     */
+    private static final int CONNECT_ATTEMPTS = Integer.getInteger("proxy.connectattempts", 3);
+    private static final long CONNECT_BACKOFF = Long.getLong("proxy.connectbackoff", 200);
+
+    /**
+     * The factory of the sockets the lease callback is exported on, or null for the RMI defaults
+     * when -Dproxy.tunedsockets=false is set. Its buffer size in bytes is set with
+     * -Dproxy.sockbuffer. Calls to the server use the factory the server exported itself with.
+     */
+    private static final TunedSocketFactory SOCKET_FACTORY
+        = Boolean.parseBoolean(System.getProperty("proxy.tunedsockets", "true"))
+            ? new TunedSocketFactory(Integer.getInteger("proxy.sockbuffer", 256 * 1024)) : null;
+
+    /**
+     * The connection pools, keyed by server address and shared by all the handlers.
+     */
+    private static final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * The callback the proxy receives lease breaks on, or null if it takes no leases.
+     */
+    private static volatile LeaseCallback leaseCallback;
+
+    /**
+     * The callback exported for RMI, and the client id it was registered under over RMI.
+     */
+    private static LeaseCallback exportedCallback;
+    private static long rmiClientId;
+
+    /**
+     * The ids the server gave the paths used so far, keyed by path and shared by all the handlers,
+     * so that calls send an 8-byte id instead of the path.
+     */
+    private static final Map<String, Long> fileIds = new ConcurrentHashMap<>();
+
+    /**
+     * The executor sending chunk uploads, shared by all the handlers.
+     */
+    private static final ExecutorService uploaders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "chunk-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The pool the connection to the server is borrowed from.
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * Constructor that picks the connection pool of the server, without dialing it.
      */
     public RPCHandler(String serverip, int port) {
-        this.serverip = serverip;
-        this.port = port;
-        initializeRMIConnection();
+        int framePort = TRANSPORT.equals("frame") ? (FRAME_PORT > 0 ? FRAME_PORT : port + 1) : -1;
+        pool = pools.computeIfAbsent(serverip + ":" + port, address
+            -> new ConnectionPool(serverip, port, framePort, CONNECT_ATTEMPTS, CONNECT_BACKOFF, RPCHandler::reconnected));
     }
 
     /**
-     * Initializes RMI connection.
+     * Opens a file on the server, getting its status, version, size and, unless the given version
+     * is cached already, its first chunk in a single call.
+     *
+     * @param serverip The IP address of the server on which the file is opened.
+     * @param port The port number on which the server is listening.
+     * @param path The path of the file to open.
+     * @param o The open option indicating how the file is to be opened.
+     * @param cachedVersion The latest version of the file in cache, or -1 if none.
+     * @return A ChunkFile object describing the opened file, or null if an error occurs.
      */
-    private void initializeRMIConnection() {
+    public ChunkFile open(String serverip, int port, String path, FileHandling.OpenOption o, int cachedVersion) {
         try {
-            Registry registry = LocateRegistry.getRegistry(serverip, port);
-            stub = (RMIInterface) registry.lookup("RMIInterface");
-            System.err.println("RMI connection initialized successfully.");
+            System.err.println("RPC CALL Opening file on server: " + path);
+            return pool.call(stub -> {
+                ChunkFile chunkFile = stub.openFile(path, o, cachedVersion, clientId(stub));
+                if (chunkFile != null && chunkFile.getFileId() > 0) {
+                    fileIds.put(path, chunkFile.getFileId());
+                }
+                return chunkFile;
+            });
         } catch (RemoteException e) {
-            System.err.println("RemoteException during RMI initialization: " + e.toString());
-            e.printStackTrace();
-            throw new RuntimeException("Error initializing RMI connection", e);
-        } catch (NotBoundException e) {
-            System.err.println("NotBoundException during RMI initialization: " + e.toString());
+            System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
-            throw new RuntimeException("RMI service not bound", e);
+            return null; // error
         }
     }
 
     /**
-     * Downloads a specific chunk of a file from the server.
+     * Downloads a byte range of a specific version of a file from the server.
      *
      * @param serverip The IP address of the server from which to download the file.
      * @param port The port number on which the server is listening.
      * @param path The path of the file to download.
-     * @param chunkNum The specific chunk number of the file to download.
-     * @param o The open option indicating how the file is to be opened.
-     * @param isFirstFetch Whether this is the first time the chunk is being fetched.
-     * @return A ChunkFile object containing the downloaded file chunk, or null if an error occurs.
+     * @param version The version of the file the range is requested from.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download.
+     * @return A ChunkFile object containing the downloaded range, or null if an error occurs.
      */
-    public ChunkFile download(
-        String serverip, int port, String path, int chunkNum, FileHandling.OpenOption o, boolean isFirstFetch) {
-        
+    public ChunkFile downloadRange(String serverip, int port, String path, int version, long offset, int length) {
         try {
-            System.err.println("RPC CALL Downloading file from server: " + path);
-            return stub.downloadChunk(path, chunkNum, o, isFirstFetch);
+            System.err.println("RPC CALL Downloading file range from server: " + path + " " + offset + "+" + length);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? null : stub.downloadRange(fileId, version, offset, length)));
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
+            forgetFileId(path);
             return null; // error
         }
     }
 
     /**
-     * Uploads a file to the server in chunks.
+     * Downloads a byte range of the file version of an open session from the server.
+     *
+     * @param serverip The IP address of the server from which to download the file.
+     * @param port The port number on which the server is listening.
+     * @param sessionId The id of the open session returned with the open.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download.
+     * @return A ChunkFile object containing the downloaded range, or null if the session has
+     *         ended or an error occurs.
+     */
+    public ChunkFile downloadSession(String serverip, int port, long sessionId, long offset, int length) {
+        try {
+            System.err.println("RPC CALL Downloading file range from session: " + sessionId + " " + offset + "+" + length);
+            return pool.call(stub -> stub.downloadSession(sessionId, offset, length));
+        } catch (RemoteException e) {
+            System.err.println("RemoteException: " + e.toString());
+            e.printStackTrace();
+            return null; // error
+        }
+    }
+
+    /**
+     * Sets the callback the proxy receives lease breaks on. Opens register it with the server
+     * the first time they need a client id.
+     *
+     * @param callback The callback, or null to take no leases.
+     */
+    public static void setLeaseCallback(LeaseCallback callback) {
+        leaseCallback = callback;
+    }
+
+    /**
+     * Returns the client id the proxy takes leases under, registering the lease callback with the
+     * server if needed: once per connection for the frame transport, which pushes breaks on it,
+     * and once per proxy for RMI, which calls back an exported object.
+     *
+     * @param stub The connection the open is made on.
+     * @return The client id, or 0 if the proxy takes no leases or registration failed.
+     */
+    private static long clientId(RMIInterface stub) {
+        LeaseCallback callback = leaseCallback;
+        if (callback == null) {
+            return 0;
+        }
+        try {
+            if (stub instanceof FrameClient) {
+                return stub.registerClient(callback);
+            }
+            synchronized (RPCHandler.class) {
+                if (rmiClientId == 0) {
+                    if (exportedCallback == null) {
+                        exportedCallback = (LeaseCallback) UnicastRemoteObject.exportObject(callback, 0, SOCKET_FACTORY, SOCKET_FACTORY);
+                    }
+                    rmiClientId = stub.registerClient(exportedCallback);
+                }
+                return rmiClientId;
+            }
+        } catch (RemoteException e) {
+            System.err.println("RemoteException when registering for leases: " + e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * A call naming a file by its id.
+     *
+     * @param <T> The type of the result of the call.
+     */
+    private interface FileCall<T> {
+        T run(long fileId) throws RemoteException;
+    }
+
+    /**
+     * Makes a call naming a file by the id the server gave it. If the server rejects an id cached
+     * from an earlier lookup, because the file has been deleted since, the path is looked up again
+     * and the call made once more.
+     *
+     * @param stub The connection the call is made on.
+     * @param path The path of the file.
+     * @param create Whether the file is about to be written, so it needs an id even if it does not exist.
+     * @param call The call, given the id of the file, 0 if the file does not exist, or -1 if the
+     *             path is outside the root directory of the server.
+     * @return The result of the call.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    private static <T> T withFileId(RMIInterface stub, String path, boolean create, FileCall<T> call)
+        throws RemoteException {
+        boolean cached = fileIds.containsKey(path);
+        try {
+            return call.run(fileId(stub, path, create));
+        } catch (RemoteException e) {
+            if (!cached || !String.valueOf(e.getMessage()).contains(RMIInterface.UNKNOWN_FILE_ID)) {
+                throw e;
+            }
+            System.err.println("The id of " + path + " is no longer known, looking it up again");
+            forgetFileId(path);
+            return call.run(fileId(stub, path, create));
+        }
+    }
+
+    /**
+     * Returns the id the server gave a file, looking the path up on its first use.
+     *
+     * @param stub The connection to look the path up on.
+     * @param path The path of the file.
+     * @param create Whether the file is about to be written, so it needs an id even if it does not exist.
+     * @return The id of the file, 0 if the file does not exist and create is false, or -1 if the
+     *         path is outside the root directory of the server.
+     * @throws RemoteException If a remote or network exception occurs.
+     */
+    private static long fileId(RMIInterface stub, String path, boolean create) throws RemoteException {
+        Long fileId = fileIds.get(path);
+        if (fileId != null) {
+            return fileId;
+        }
+        long id = stub.lookupFile(path, create);
+        if (id > 0) {
+            fileIds.put(path, id);
+        }
+        return id;
+    }
+
+    /**
+     * Forgets the id of a file after a failed call, since the server may have restarted and no
+     * longer know it. The next call looks the path up again.
+     *
+     * @param path The path of the file.
+     */
+    private static void forgetFileId(String path) {
+        fileIds.remove(path);
+    }
+
+    /**
+     * Forgets what the server handed out over the connection before a reconnection, since the
+     * server may have restarted: the file ids, the RMI client id, and the leases, whose breaks
+     * may have been lost with the connection.
+     */
+    private static void reconnected() {
+        fileIds.clear();
+        synchronized (RPCHandler.class) {
+            rmiClientId = 0;
+        }
+        if (leaseCallback instanceof LeaseTable) {
+            ((LeaseTable) leaseCallback).breakAll();
+        }
+    }
+
+    /**
+     * Checks whether the transport can download ranges straight into a file, as the frame
+     * transport does.
+     *
+     * @return true if {@link #transferRange} can be used; false otherwise.
+     */
+    public boolean canTransferRange() {
+        return pool.isFrameTransport();
+    }
+
+    /**
+     * Downloads a byte range of a specific version of a file from the server straight into a file.
+     * Only available when {@link #canTransferRange()} is true.
+     *
+     * @param serverip The IP address of the server from which to download the file.
+     * @param port The port number on which the server is listening.
+     * @param path The path of the file to download.
+     * @param version The version of the file the range is requested from.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download.
+     * @param sink The file the range is written to, at the same offset.
+     * @return The number of bytes written, or -1 if the version is gone or an error occurs.
+     */
+    public int transferRange(String serverip, int port, String path, int version, long offset, int length, FileChannel sink) {
+        try {
+            System.err.println("RPC CALL Transferring file range from server: " + path + " " + offset + "+" + length);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? -1 : ((FrameClient) stub).transferRange(fileId, version, offset, length, sink, offset)));
+        } catch (RemoteException e) {
+            System.err.println("RemoteException: " + e.toString());
+            e.printStackTrace();
+            forgetFileId(path);
+            return -1; // error
+        }
+    }
+
+    /**
+     * Downloads a byte range of the file version of an open session from the server straight
+     * into a file. Only available when {@link #canTransferRange()} is true.
+     *
+     * @param serverip The IP address of the server from which to download the file.
+     * @param port The port number on which the server is listening.
+     * @param sessionId The id of the open session returned with the open.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes to download.
+     * @param sink The file the range is written to, at the same offset.
+     * @return The number of bytes written, or -1 if the session has ended or an error occurs.
+     */
+    public int transferSession(String serverip, int port, long sessionId, long offset, int length, FileChannel sink) {
+        try {
+            System.err.println("RPC CALL Transferring file range from session: " + sessionId + " " + offset + "+" + length);
+            return pool.call(stub -> ((FrameClient) stub).transferSession(sessionId, offset, length, sink, offset));
+        } catch (RemoteException e) {
+            System.err.println("RemoteException: " + e.toString());
+            e.printStackTrace();
+            return -1; // error
+        }
+    }
+
+    /**
+     * Uploads a file to the server in chunks. The chunks are read from a single open channel and
+     * sent through an upload session with up to {@link #UPLOAD_WINDOW} calls in flight at once;
+     * the server assembles them in any order and commits the new version once all have arrived.
+     * The whole session runs on one borrowed connection, since only the server that began it
+     * knows it. If a call of the session could not be delivered on a stale connection, the
+     * session is started over once on a new connection; the server drops the abandoned one.
      *
      * @param serverip The IP address of the server to which the file is uploaded.
      * @param port The port number on which the server is listening.
      * @param originPath The original path of the file on the client side.
-     * @param cacheFile The {@link CacheFile} object representing the file to be uploaded.
+     * @param localPath The path of the local file holding the content to upload.
+     * @param version The version reserved for the upload, or 0 to have the server assign the next
+     *                version when the upload commits.
+     * @return The version committed, or -1 if the upload failed.
      */
-    public void upload(String serverip, int port, String originPath, CacheFile cacheFile) {
+    public int upload(String serverip, int port, String originPath, String localPath, int version) {
         try {
             System.err.println("RPC CALL Uploading file to server: " + originPath);
-            
-            int chunkNum = 0;
-            int chunkStart = 0;
-            int totalSize = cacheFile.getSize();
-            int version = cacheFile.getVersion();
-            String cachePath = cacheFile.getPath();
-
-            while (chunkStart < totalSize) {
-                int chunkSize = Math.min(CHUNK_SIZE, totalSize - chunkStart);
-                byte[] data = new byte[chunkSize];
-
-                RandomAccessFile raf = new RandomAccessFile(Paths.get(cachePath).toFile(), "r");
-                raf.seek(chunkStart);
-                raf.read(data, 0, chunkSize);
-
-                boolean lastChunk = chunkStart + chunkSize >= totalSize;
-                ChunkFile chunkFile = new ChunkFile(originPath, data, version, chunkNum++, lastChunk);
-                stub.uploadChunk(chunkFile);
-                chunkStart += chunkSize;
+
+            try (FileChannel channel = FileChannel.open(Paths.get(localPath), StandardOpenOption.READ)) {
+                RMIInterface connection = pool.borrow();
+                try {
+                    return uploadSession(connection, originPath, channel, version);
+                } catch (RemoteException e) {
+                    pool.fail(connection, e);
+                    if (!ConnectionPool.isUndelivered(e)) {
+                        throw e;
+                    }
+                    System.err.println("Restarting upload of " + originPath + " on a new connection after: " + e);
+                }
+
+                connection = pool.borrow();
+                try {
+                    return uploadSession(connection, originPath, channel, version);
+                } catch (RemoteException e) {
+                    pool.fail(connection, e);
+                    throw e;
+                }
             }
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
-            System.exit(1);
-        } catch (FileNotFoundException e) {
-            System.err.println("FileNotFoundException: " + e.toString());
-            e.printStackTrace();
-            System.exit(1);
+            forgetFileId(originPath);
+        } catch (InterruptedException e) {
+            System.err.println("InterruptedException: " + e.toString());
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             System.err.println("IOException: " + e.toString());
             e.printStackTrace();
-            System.exit(1);
         }
+        return -1; // error, the caller decides whether to retry
+    }
+
+    /**
+     * Runs an upload session on one connection: begins it, sends the chunks through a pipeline,
+     * and returns the version committed by the chunk completing it.
+     *
+     * @param connection The connection every call of the session is made on.
+     * @param originPath The original path of the file on the client side.
+     * @param channel The open channel of the local file holding the content to upload.
+     * @param version The version reserved for the upload, or 0 to have the server assign it.
+     * @return The version committed.
+     * @throws RemoteException If a call of the session fails.
+     * @throws IOException If the local file cannot be read, or the server rejects the upload.
+     * @throws InterruptedException If interrupted waiting for a chunk upload.
+     */
+    private int uploadSession(RMIInterface connection, String originPath, FileChannel channel, int version)
+        throws IOException, InterruptedException {
+        long totalSize = channel.size();
+        int chunkCount = Math.max(1, (int) ((totalSize + CHUNK_SIZE - 1) / CHUNK_SIZE));
+
+        long uploadId = withFileId(connection, originPath, true,
+            fileId -> fileId < 0 ? -1 : connection.beginUpload(fileId, version, totalSize));
+        if (uploadId < 0) {
+            throw new IOException("Upload session rejected for: " + originPath);
+        }
+
+        CompletionService<Integer> pipeline = new ExecutorCompletionService<Integer>(uploaders);
+        int chunkNum = 0;
+        int inFlight = 0;
+        boolean success = true;
+        int committedVersion = -1;
+        RemoteException failure = null;
+
+        while (chunkNum < chunkCount || inFlight > 0) {
+            while (success && chunkNum < chunkCount && inFlight < UPLOAD_WINDOW) {
+                long chunkStart = (long) chunkNum * CHUNK_SIZE;
+                int chunkSize = (int) Math.min(CHUNK_SIZE, totalSize - chunkStart);
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, chunkStart + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file: " + originPath);
+                    }
+                }
+
+                boolean lastChunk = chunkNum == chunkCount - 1;
+                ChunkFile chunkFile = new ChunkFile(null, buffer.array(), version, chunkNum++, lastChunk);
+                pipeline.submit(() -> connection.uploadChunk(uploadId, chunkFile));
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                break;
+            }
+            /* the chunk completing the upload returns the version committed */
+            try {
+                int stored = pipeline.take().get();
+                success = success && stored >= 0;
+                if (stored > 0) {
+                    committedVersion = stored;
+                }
+            } catch (ExecutionException e) {
+                success = false;
+                if (e.getCause() instanceof RemoteException && failure == null) {
+                    failure = (RemoteException) e.getCause();
+                }
+            }
+            inFlight--;
+        }
+
+        /* the chunks in flight have all returned, so the session can be started over */
+        if (failure != null) {
+            throw failure;
+        }
+        if (!success || committedVersion < 0) {
+            throw new IOException("Server failed to store a chunk of: " + originPath);
+        }
+        return committedVersion;
     }
 
     /**
@@ -158,10 +517,12 @@ public class RPCHandler {
     public boolean isFileExist(String serverip, int port, String path) {
         try {
             System.err.println("RPC CALL Checking file existence: " + path);
-            return stub.isFileExist(path);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? false : stub.isFileExist(fileId)));
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
+            forgetFileId(path);
             return false; // error
         }
     }
@@ -177,10 +538,12 @@ public class RPCHandler {
     public  boolean isDirectory(String serverip, int port, String path) {
         try {
             System.err.println("RPC CALL Checking directory existence: " + path);
-            return stub.isDirectory(path);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? false : stub.isDirectory(fileId)));
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
+            forgetFileId(path);
             return false; // error
         }
     }
@@ -196,10 +559,33 @@ public class RPCHandler {
     public int getFileVersion(String serverip, int port, String path) {
         try {
             System.err.println("RPC CALL Getting file version: " + path);
-            return stub.getFileVersion(path);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? -1 : stub.getFileVersion(fileId)));
+        } catch (RemoteException e) {
+            System.err.println("RemoteException: " + e.toString());
+            e.printStackTrace();
+            forgetFileId(path);
+            return -1; // error
+        }
+    }
+
+    /**
+     * Allocates the next version of a file on the server and marks it as pending.
+     *
+     * @param serverip The IP address of the server.
+     * @param port The port number on which the server is listening.
+     * @param path The path of the file whose version is to be allocated.
+     * @return The allocated version, or -1 if an error occurs.
+     */
+    public int reserveVersion(String serverip, int port, String path) {
+        try {
+            System.err.println("RPC CALL Reserving file version: " + path);
+            return pool.call(stub -> withFileId(stub, path, true,
+                fileId -> fileId < 0 ? -1 : stub.reserveVersion(fileId)));
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
+            forgetFileId(path);
             return -1; // error
         }
     }
@@ -215,10 +601,12 @@ public class RPCHandler {
     public boolean delete(String serverip, int port, String path) {
         try {
             System.err.println("RPC CALL Deleting file: " + path);
-            return stub.delete(path);
+            return pool.call(stub -> withFileId(stub, path, false,
+                fileId -> fileId <= 0 ? false : stub.delete(fileId)));
         } catch (RemoteException e) {
             System.err.println("RemoteException: " + e.toString());
             e.printStackTrace();
+            forgetFileId(path);
             return false; // error
         }
     }
@@ -1,14 +1,30 @@
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -50,90 +66,278 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     private static final int EACCES = -13;
 
+    /**
+     * The time after which an upload session without any chunk is aborted, in milliseconds.
+     */
+    private static final long UPLOAD_SESSION_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * The time after which an open session without any download is closed, in milliseconds,
+     * set with -Dserver.sessiontimeout.
+     */
+    private static final long OPEN_SESSION_TIMEOUT = Long.getLong("server.sessiontimeout", 60 * 1000);
+
+    /**
+     * The time after which a pending version marker without upload progress expires, in milliseconds.
+     */
+    private static final long PENDING_VERSION_TIMEOUT = 30 * 1000;
+
+    /**
+     * How long a version replaced by an upload stays readable by the downloads already under
+     * way, in milliseconds, set with -Dserver.retiredtimeout; 0 disables keeping it.
+     */
+    private static final long RETIRED_VERSION_TIMEOUT = Long.getLong("server.retiredtimeout", 60 * 1000);
+
+    /**
+     * The most file handles kept open between chunk reads, set with -Dserver.handles (0 disables
+     * caching them), and how long an unused one is kept, in milliseconds, set with
+     * -Dserver.handleidle.
+     */
+    private static final int HANDLE_CACHE_SIZE = Integer.getInteger("server.handles", 256);
+    private static final long HANDLE_IDLE_TIMEOUT = Long.getLong("server.handleidle", 30 * 1000);
+
+    /**
+     * The most bytes of file chunks kept in memory, set with -Dserver.chunkcache; 0 disables it.
+     */
+    private static final long CHUNK_CACHE_SIZE = Long.getLong("server.chunkcache", 64L * 1024 * 1024);
+
+    /**
+     * Files up to this size are sent whole in the reply to an open, set with -Dserver.inlinesize
+     * and capped at 16 MB; larger files only get their first chunk sent.
+     */
+    private static final int INLINE_SIZE = Math.min(16 * 1024 * 1024, Integer.getInteger("server.inlinesize", CHUNK_SIZE));
+
+    /**
+     * How long a lease granted on a file version lasts, in milliseconds, set with
+     * -Dserver.leaseterm; 0 disables leases.
+     */
+    private static final long LEASE_TERM = Long.getLong("server.leaseterm", 10 * 1000);
+
+    /**
+     * The port the framed binary transport of {@link FrameServer} also serves the operations on,
+     * set with -Dserver.frameport; the transport is off unless it is set. Proxies started with
+     * -Dproxy.transport=frame look for it on the RMI port + 1 unless -Dproxy.frameport is set.
+     */
+    private static final int FRAME_PORT = Integer.getInteger("server.frameport", -1);
+
+    /**
+     * The directory inside the root where uploads are staged until they commit. It is on the
+     * same filesystem as the files it replaces, so that a commit is an atomic rename, and clients
+     * cannot reach it.
+     */
+    private static final String STAGING_DIR = ".uploads";
+
+    /**
+     * The number of file lock stripes.
+     */
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * The factory of the sockets the server and its registry are exported on, or null for the
+     * RMI defaults when -Dserver.tunedsockets=false is set. Its buffer size in bytes is set
+     * with -Dserver.sockbuffer.
+     */
+    private static final TunedSocketFactory SOCKET_FACTORY
+        = Boolean.parseBoolean(System.getProperty("server.tunedsockets", "true"))
+            ? new TunedSocketFactory(Integer.getInteger("server.sockbuffer", 256 * 1024)) : null;
+
     /**
      * The root directory of the server.
      */
     private String rootdir;
 
     /**
-     * The read-write lock used for synchronization.
+     * The directory uploads are staged in.
      */
-    private final ReentrantReadWriteLock rwLock;
-    private final Lock readLock;
-    private final Lock writeLock;
+    private final Path stagingDir;
+
+    /**
+     * The read-write locks used for synchronization, striped by file path so that operations on
+     * different files do not block each other.
+     */
+    private final ReentrantReadWriteLock[] fileLocks;
 
     /**
      * The key is the file path, and the value is the ServerFile object.
      */
-    private Map<String, ServerFile> serverFileMap;
+    private final Map<String, ServerFile> serverFileMap;
+
+    /**
+     * The journal persisting serverFileMap across restarts.
+     */
+    private final VersionJournal versionJournal;
 
     /**
      * The path handlers for path manipulation.
      */
     private PathHandler pathHandlers;
 
+    /**
+     * The pending versions reserved for writes not uploaded yet, keyed by server path.
+     * Guarded by its own monitor, which is always taken before any file lock.
+     */
+    private final Map<String, ServerFile> pendingVersions;
+
+    /**
+     * The last version allocated to each file, by a reservation or a commit, keyed by server path.
+     * Versions are only ever allocated from here, so no two writes of a file share a version.
+     * It starts with the last versions of the files deleted before a restart.
+     */
+    private final Map<String, Integer> allocatedVersions;
+
+    /**
+     * The clients registered to take leases, keyed by client id, and the leases they hold,
+     * keyed by server path and then by client id. Each lease records the path the client used
+     * and the lease deadline.
+     */
+    private final Map<Long, LeaseCallback> leaseClients;
+    private final Map<String, Map<Long, ServerFile>> leases;
+
+    /**
+     * The executor sending lease breaks to the clients in parallel.
+     */
+    private final ExecutorService leaseBreakers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "lease-break");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The lease breaks started by reservations and still under way, keyed by server path. Each
+     * one runs after the one it replaced, and commits and deletes wait for it before breaking
+     * the leases granted since.
+     */
+    private final Map<String, CompletableFuture<Void>> reservationBreaks = new ConcurrentHashMap<>();
+
+    /**
+     * The ids handed out by {@link #lookupFile} and the server paths they name. An id names a
+     * path, not a version, so it stays valid across uploads of the file, until the file is deleted.
+     * Ids start with a tag drawn at startup, so that ids handed out before a restart are not taken
+     * for new ones.
+     */
+    private final Map<String, Long> fileIds;
+    private final Map<Long, String> filePaths;
+    private final long fileIdTag;
+    private final AtomicLong nextFileId;
+
+    /**
+     * The upload sessions in progress, keyed by their id.
+     */
+    private final Map<Long, UploadSession> uploadSessions;
+    private final AtomicLong nextUploadId;
+
+    /**
+     * The open sessions, keyed by their id.
+     */
+    private final Map<Long, OpenSession> openSessions;
+
+    /**
+     * The handles kept open on versions replaced by uploads, keyed by server path and version.
+     * Each one still reads the inode of its version, which the rename has unlinked.
+     */
+    private final Map<String, FileHandle> retiredVersions;
+
+    /**
+     * The read handles kept open on the current versions of files.
+     */
+    private final HandleCache handleCache;
+
+    /**
+     * The chunks of files recently read, kept in memory.
+     */
+    private final ChunkCache chunkCache;
+
     /**
      * Constructs a Server object with the given port and root directory.
      * 
      * @param port The port number of the server.
      * @param rootdir The root directory of the server.
-     * @throws RemoteException If a remote communication error occurs.
-     */
-    public Server(int port, String rootdir) throws RemoteException {
-        super(port);
-        rwLock = new ReentrantReadWriteLock();
-        readLock = rwLock.readLock();
-        writeLock = rwLock.writeLock();
-        serverFileMap = new HashMap<>();
+     * @throws IOException If a remote communication error occurs or the version journal cannot be loaded.
+     */
+    public Server(int port, String rootdir) throws IOException {
+        super(port, SOCKET_FACTORY, SOCKET_FACTORY);
+        fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
+        serverFileMap = new ConcurrentHashMap<>();
+        versionJournal = new VersionJournal(journalPath(rootdir), serverFileMap);
+        versionJournal.load();
         this.rootdir = rootdir;
+        stagingDir = Paths.get(rootdir, STAGING_DIR).toAbsolutePath().normalize();
+        clearStagingDir();
         pathHandlers = new PathHandler(rootdir);
+        pendingVersions = new HashMap<>();
+        allocatedVersions = new ConcurrentHashMap<>(versionJournal.getDeletedVersions());
+        uploadSessions = new ConcurrentHashMap<>();
+        leaseClients = new ConcurrentHashMap<>();
+        leases = new ConcurrentHashMap<>();
+        nextUploadId = new AtomicLong();
+        fileIds = new ConcurrentHashMap<>();
+        filePaths = new ConcurrentHashMap<>();
+        fileIdTag = (long) ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE) << 32;
+        nextFileId = new AtomicLong();
+        retiredVersions = new ConcurrentHashMap<>();
+        handleCache = new HandleCache(HANDLE_CACHE_SIZE, HANDLE_IDLE_TIMEOUT);
+        chunkCache = new ChunkCache(CHUNK_CACHE_SIZE);
+        openSessions = new ConcurrentHashMap<>();
     }
 
     @Override
-    public ChunkFile downloadChunk(String path, int chunkNum, FileHandling.OpenOption o, boolean isFirstFetch) throws RemoteException {
+    public ChunkFile openFile(String path, FileHandling.OpenOption o, int cachedVersion, long clientId) throws RemoteException {
+        /* an open sees the version a client has closed but not uploaded yet */
+        String serverPath = pathHandlers.getPathInServer(path);
+        awaitPendingVersion(serverPath);
+
+        Lock readLock = readLock(serverPath);
         readLock.lock();
         try {
             int status = processOpen(path, o);
-
-            /* error after open */
             if (status < 0) {
                 System.err.println("Error after open: " + status);
-                ChunkFile res = new ChunkFile(path, null, 0, chunkNum, true);
+                ChunkFile res = new ChunkFile(null, null, 0, 0, true);
                 res.setValid(false);
                 res.setStatusCode(status);
                 return res;
             }
 
-            /* manage server file */
-            String serverPath = pathHandlers.getPathInServer(path);
             ServerFile serverFile = manageServerFile(serverPath);
-            
-            /* success open but file not exist */
             if (!Files.exists(Paths.get(serverPath))) {
-                ChunkFile res = new ChunkFile(path, null, 0, chunkNum, true);
+                ChunkFile res = new ChunkFile(null, null, 0, 0, true);
                 res.setExsit(false);
                 res.setStatusCode(status);
                 return res;
             }
 
-            /* read chunk data from file if not first fetch */
+            /* piggyback the whole small file or the first chunk, unless the client has this version already */
             long fileSize = Files.size(Paths.get(serverPath));
-            System.err.println("Downloading file chunk: " + chunkNum + " from " + serverPath);
-            long chunkStart = (long) chunkNum * CHUNK_SIZE;
-            long chunkSize = Math.min(CHUNK_SIZE, fileSize - chunkStart);
-            byte[] chunkData = isFirstFetch ? null : readChunkData(serverPath, chunkStart, chunkSize);
-
-            boolean isLastChunk = chunkStart + CHUNK_SIZE >= fileSize && !isFirstFetch;
-            if (isLastChunk) {
-                System.err.println("All file chunks are downloaded at: " + path + " with size: " + fileSize);
+            long firstSize = fileSize <= INLINE_SIZE ? fileSize : Math.min(CHUNK_SIZE, fileSize);
+            boolean regularFile = Files.isRegularFile(Paths.get(serverPath));
+            byte[] data = null;
+            if (serverFile.getVersion() != cachedVersion && regularFile) {
+                System.err.println("Downloading file head: " + firstSize + " bytes from " + serverPath);
+                data = readChunkData(serverPath, serverFile.getVersion(), 0, firstSize);
             }
-            ChunkFile chunkFile = new ChunkFile(path, chunkData, serverFile.getVersion(), chunkNum, isLastChunk);
+
+            ChunkFile chunkFile = new ChunkFile(null, data, serverFile.getVersion(), 0, firstSize == fileSize);
             chunkFile.setTotalSize(fileSize);
             chunkFile.setStatusCode(status);
+            chunkFile.setFileId(fileIdOf(serverPath));
+
+            /* open a session for the chunks the client may still download */
+            if (regularFile && firstSize < fileSize) {
+                chunkFile.setSessionId(openSession(serverPath, serverFile.getVersion(), fileSize));
+            }
+
+            /* lease the version to the client, under the read lock so no commit can slip in between */
+            if (o == FileHandling.OpenOption.READ && regularFile
+                && grantLease(serverPath, path, serverFile.getVersion(), clientId)) {
+                chunkFile.setLeaseTerm(LEASE_TERM);
+            }
             return chunkFile;
         } catch (Exception e) {
             e.printStackTrace();
-            System.err.println("Error when reading file from remote server");
+            System.err.println("Error when opening file in remote server");
             return null; // error
         } finally {
             readLock.unlock();
@@ -141,40 +345,245 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
     }
 
     @Override
-    public void uploadChunk(ChunkFile chunkFile) throws RemoteException {
-        writeLock.lock();
+    public long registerClient(LeaseCallback callback) throws RemoteException {
+        /* ids are random so that ids handed out before a restart are not reused */
+        long clientId;
+        do {
+            clientId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        } while (leaseClients.putIfAbsent(clientId, callback) != null);
+        System.err.println("Client " + clientId + " registered for leases");
+        return clientId;
+    }
+
+    /**
+     * Unregisters a client from leases, when the connection it registered on has closed. Its
+     * leases still run until they expire, since breaks can no longer reach it.
+     *
+     * @param clientId The id of the client.
+     */
+    public void unregisterClient(long clientId) {
+        if (leaseClients.remove(clientId) != null) {
+            System.err.println("Client " + clientId + " unregistered from leases");
+        }
+    }
+
+    @Override
+    public long lookupFile(String path, boolean create) throws RemoteException {
+        String serverPath = pathHandlers.getPathInServer(path);
+        if (!inRootDir(serverPath)) {
+            System.err.println("BLOCKED!!! user is trying to look up file outside of root directory");
+            return -1;
+        }
+
+        /* under the read lock, so that a delete cannot drop the id between the check and the lookup */
+        Lock readLock = readLock(serverPath);
+        readLock.lock();
         try {
-            String serverPath = pathHandlers.getPathInServer(chunkFile.getPath());
-            byte[] data = chunkFile.getData();
-            int version = chunkFile.getVersion();
-            int chunkNum = chunkFile.getChunkNumber();
-            System.err.println("Uploading file chunk: " + serverPath + " " + chunkNum);
+            if (!create && !Files.exists(Paths.get(serverPath))) {
+                System.err.println("Looked up missing file: " + serverPath);
+                return 0;
+            }
+            long fileId = fileIdOf(serverPath);
+            System.err.println("Looked up file: " + serverPath + " " + fileId);
+            return fileId;
+        } finally {
+            readLock.unlock();
+        }
+    }
 
-            writeChunkData(serverPath, data, (long) chunkNum * CHUNK_SIZE);
+    @Override
+    public ChunkFile downloadRange(long fileId, int version, long offset, int length) throws RemoteException {
+        String serverPath = serverPathOf(fileId);
+        Lock readLock = readLock(serverPath);
+        readLock.lock();
+        try {
+            int chunkNum = (int) (offset / CHUNK_SIZE);
+
+            /* a version replaced while it was being downloaded is read from its old inode */
+            FileHandle retired = acquireRetiredVersion(serverPath, version);
+            if (retired != null) {
+                try {
+                    long fileSize = retired.getChannel().size();
+                    long rangeSize = Math.max(0, Math.min(length, fileSize - offset));
+                    System.err.println("Downloading file range: " + offset + "+" + rangeSize
+                        + " from " + serverPath + " retired version " + version);
+                    byte[] data = readChunkData(retired.getChannel(), offset, rangeSize);
+                    ChunkFile chunkFile = new ChunkFile(null, data, version, chunkNum, offset + rangeSize >= fileSize);
+                    chunkFile.setTotalSize(fileSize);
+                    return chunkFile;
+                } finally {
+                    retired.release();
+                }
+            }
 
-            if (chunkFile.isLastChunk()) {
-                serverFileMap.put(serverPath, new ServerFile(serverPath, version));
-                System.err.println("File is uploaded at: " 
-                    + serverPath + " with version: " 
-                    + version + " and size: " + Files.size(Paths.get(serverPath)));
+            if (!Files.isRegularFile(Paths.get(serverPath))) {
+                ChunkFile res = new ChunkFile(null, null, 0, chunkNum, true);
+                res.setExsit(false);
+                return res;
+            }
+
+            /* only serve the requested version */
+            ServerFile serverFile = manageServerFile(serverPath);
+            long fileSize = Files.size(Paths.get(serverPath));
+            long rangeSize = Math.max(0, Math.min(length, fileSize - offset));
+            boolean isLastChunk = offset + rangeSize >= fileSize;
+            byte[] data = null;
+            if (serverFile.getVersion() == version) {
+                System.err.println("Downloading file range: " + offset + "+" + rangeSize + " from " + serverPath);
+                data = readChunkData(serverPath, version, offset, rangeSize);
+            } else {
+                System.err.println("Version " + version + " of " + serverPath + " is gone, current is " + serverFile.getVersion());
             }
+
+            ChunkFile chunkFile = new ChunkFile(null, data, serverFile.getVersion(), chunkNum, isLastChunk);
+            chunkFile.setTotalSize(fileSize);
+            return chunkFile;
         } catch (Exception e) {
             e.printStackTrace();
-            System.err.println("Error when uploading file chunk to remote server");
+            System.err.println("Error when reading file range from remote server");
+            return null; // error
         } finally {
-            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public ChunkFile downloadSession(long sessionId, long offset, int length) throws RemoteException {
+        OpenSession session = openSessions.get(sessionId);
+        FileHandle handle = session == null ? null : session.acquire();
+        if (handle == null) {
+            System.err.println("Unknown open session: " + sessionId);
+            return null;
+        }
+
+        try {
+            long fileSize = session.getSize();
+            long rangeSize = Math.max(0, Math.min(length, fileSize - offset));
+            System.err.println("Downloading file range: " + offset + "+" + rangeSize + " from session " + sessionId);
+            byte[] data = readChunkData(handle, offset, rangeSize);
+            ChunkFile chunkFile = new ChunkFile(null, data, session.getVersion(),
+                (int) (offset / CHUNK_SIZE), offset + rangeSize >= fileSize);
+            chunkFile.setTotalSize(fileSize);
+            return chunkFile;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error when reading file range from remote server");
+            return null; // error
+        } finally {
+            handle.release();
+        }
+    }
+
+    @Override
+    public long beginUpload(long fileId, int version, long totalSize) throws RemoteException {
+        String serverPath = serverPathOf(fileId);
+        try {
+            expireUploadSessions();
+            long uploadId = nextUploadId.incrementAndGet();
+            UploadSession session = new UploadSession(uploadId, serverPath, stagingDir, version, totalSize, CHUNK_SIZE);
+            uploadSessions.put(uploadId, session);
+            System.err.println("Upload session " + uploadId + " started for: " + serverPath
+                + " with version: " + version + " and size: " + totalSize);
+            return uploadId;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Error when starting upload session in remote server");
+            return -1;
         }
     }
 
     @Override
-    public boolean delete(String path) throws RemoteException {
+    public int uploadChunk(long uploadId, ChunkFile chunkFile) throws RemoteException {
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null) {
+            System.err.println("Unknown upload session: " + uploadId);
+            return -1;
+        }
+
+        try {
+            int chunkNum = chunkFile.getChunkNumber();
+            System.err.println("Uploading file chunk: " + session.getServerPath() + " " + chunkNum);
+
+            /* chunks are staged without any global lock, only the commit takes the write lock */
+            refreshPendingVersion(session.getServerPath());
+            if (session.writeChunk(chunkNum, chunkFile.getData())) {
+                return commitUpload(session);
+            }
+            return 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Error when uploading file chunk to remote server");
+            uploadSessions.remove(uploadId);
+            session.abort();
+            return -1;
+        }
+    }
+
+    @Override
+    public int reserveVersion(long fileId) throws RemoteException {
+        String serverPath = serverPathOf(fileId);
+        int version;
+        synchronized (pendingVersions) {
+            version = allocateVersion(serverPath);
+            ServerFile pending = new ServerFile(serverPath, version);
+            pending.setDeadline(System.currentTimeMillis() + PENDING_VERSION_TIMEOUT);
+            pendingVersions.put(serverPath, pending);
+            System.err.println("Reserved version: " + serverPath + " " + version);
+        }
+
+        /* leased opens must go to the server, where they wait for the pending version; the leases
+           are broken in the background, so that the close reserving the version does not wait
+           out holders that cannot be reached */
+        CompletableFuture<Void> breaking = reservationBreaks.compute(serverPath, (key, previous) -> previous == null
+            ? CompletableFuture.runAsync(() -> breakHeldLeases(key), leaseBreakers)
+            : previous.handleAsync((result, e) -> {
+                breakHeldLeases(key);
+                return null;
+            }, leaseBreakers));
+        breaking.whenComplete((result, e) -> reservationBreaks.remove(serverPath, breaking));
+        return version;
+    }
+
+    @Override
+    public boolean delete(long fileId) throws RemoteException {
+        String path = serverPathOf(fileId);
+        try {
+            return deleteFile(path);
+        } finally {
+            breakLeases(path);
+        }
+    }
+
+    /**
+     * Deletes a file from the server and forgets its version.
+     *
+     * @param path The path of the file on the server.
+     * @return true if the deletion was successful; false otherwise.
+     */
+    private boolean deleteFile(String path) {
+        /* a deleted file has no pending version to wait for */
+        clearPendingVersion(path, Integer.MAX_VALUE);
+
+        Lock writeLock = writeLock(path);
         writeLock.lock();
         try {
-            path = pathHandlers.getPathInServer(path);
             System.err.println("Deleting file: " + path);
             if (Files.exists(Paths.get(path))) {
                 Files.delete(Paths.get(path));
-                serverFileMap.remove(path);
+                FileHandle handle = handleCache.invalidate(path);
+                if (handle != null) {
+                    handle.release();
+                }
+                chunkCache.invalidate(path);
+                closeOpenSessions(path);
+                forgetFileId(path);
+                ServerFile removed = serverFileMap.remove(path);
+                Integer allocated = allocatedVersions.get(path);
+                int lastVersion = Math.max(removed == null ? 0 : removed.getVersion(),
+                    allocated == null ? 0 : allocated);
+                if (removed != null || lastVersion > 0) {
+                    recordDeletion(path, lastVersion);
+                }
                 System.err.println("File is deleted at: " + path);
                 return true;
             }
@@ -190,10 +599,11 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
     }
 
     @Override
-    public boolean isFileExist(String path) throws RemoteException {
+    public boolean isFileExist(long fileId) throws RemoteException {
+        String path = serverPathOf(fileId);
+        Lock readLock = readLock(path);
         readLock.lock();
         try {
-            path = pathHandlers.getPathInServer(path);
             boolean res = Files.exists(Paths.get(path));
             System.err.println("Checking file existence: " + path + " " + res);
             return res;
@@ -207,10 +617,11 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
     }
 
     @Override
-    public boolean isDirectory(String path) throws RemoteException {
+    public boolean isDirectory(long fileId) throws RemoteException {
+        String path = serverPathOf(fileId);
+        Lock readLock = readLock(path);
         readLock.lock();
         try {
-            path = pathHandlers.getPathInServer(path);
             boolean res = Files.isDirectory(Paths.get(path));
             System.err.println("Checking file type: " + path + " " + res);
             return res;
@@ -224,10 +635,12 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
     }
 
     @Override
-    public int getFileVersion(String path) throws RemoteException {
+    public int getFileVersion(long fileId) throws RemoteException {
+        String path = serverPathOf(fileId);
+        awaitPendingVersion(path);
+        Lock readLock = readLock(path);
         readLock.lock();
         try {
-            path = pathHandlers.getPathInServer(path);
             if (Files.exists(Paths.get(path))) {
                 if (serverFileMap.containsKey(path)) {
                     int res = serverFileMap.get(path).getVersion();
@@ -248,43 +661,479 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         }
     }
 
+    /**
+     * Opens a specific version of a file so that a range of it can be sent straight from the file
+     * to a socket. The version is checked under the read lock; since uploads replace a file by
+     * renaming a new one over it, the returned channel keeps reading that version even if a newer
+     * one is committed while the transfer runs. A version replaced recently is still served from
+     * the handle kept on its old inode.
+     *
+     * @param fileId  The id of the file, as returned by {@link #lookupFile}.
+     * @param version The version of the file requested.
+     * @return A handle on the file, to be released by the caller, or null if the file does not
+     *         exist or is no longer at the requested version.
+     * @throws IOException If the file cannot be opened or the id is unknown.
+     */
+    public FileHandle openVersion(long fileId, int version) throws IOException {
+        String serverPath = serverPathOf(fileId);
+        Lock readLock = readLock(serverPath);
+        readLock.lock();
+        try {
+            FileHandle retired = acquireRetiredVersion(serverPath, version);
+            if (retired != null) {
+                return retired;
+            }
+            if (!Files.isRegularFile(Paths.get(serverPath))) {
+                return null;
+            }
+            if (manageServerFile(serverPath).getVersion() != version) {
+                System.err.println("Version " + version + " of " + serverPath + " is gone");
+                return null;
+            }
+            return handleCache.acquire(serverPath, version);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a handle on the file version of an open session, so that a range of it can be sent
+     * straight from the file to a socket.
+     *
+     * @param sessionId The id of the open session.
+     * @return A handle on the file, to be released by the caller, or null if the session is unknown.
+     */
+    public FileHandle openSessionHandle(long sessionId) {
+        OpenSession session = openSessions.get(sessionId);
+        return session == null ? null : session.acquire();
+    }
+
+    /**
+     * Opens a session on the current version of a file. Must be called with the file's read lock
+     * held. Sessions left idle for too long are closed here too.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The current version of the file.
+     * @param size       The size of the file in bytes.
+     * @return The id of the session, or 0 if it could not be opened.
+     */
+    private long openSession(String serverPath, int version, long size) {
+        expireOpenSessions();
+        try {
+            FileHandle handle = handleCache.acquire(serverPath, version);
+            OpenSession session;
+            /* ids are random so that ids handed out before a restart are not reused */
+            do {
+                session = new OpenSession(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE), handle, size);
+            } while (openSessions.putIfAbsent(session.getId(), session) != null);
+            return session.getId();
+        } catch (IOException e) {
+            System.err.println("Error when opening session on " + serverPath + ": " + e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Closes the open sessions of a file, when it is replaced or deleted.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void closeOpenSessions(String serverPath) {
+        for (OpenSession session : openSessions.values()) {
+            if (session.getServerPath().equals(serverPath) && openSessions.remove(session.getId(), session)) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the open sessions that have not been used for too long.
+     */
+    private void expireOpenSessions() {
+        long now = System.currentTimeMillis();
+        for (OpenSession session : openSessions.values()) {
+            if (now - session.getLastActivity() > OPEN_SESSION_TIMEOUT
+                && openSessions.remove(session.getId(), session)) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk of data from an open channel, with positional reads that leave the channel
+     * usable by other threads at the same time.
+     *
+     * @param channel    The channel to read from.
+     * @param chunkStart The start position of the chunk in the file.
+     * @param chunkSize  The size of the chunk to read.
+     * @return The chunk data as a byte array.
+     * @throws IOException If the chunk cannot be read.
+     */
+    private byte[] readChunkData(FileChannel channel, long chunkStart, long chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) chunkSize);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, chunkStart + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a chunk of data from a file version through a handle on it, or from the chunk cache,
+     * caching the chunk read.
+     *
+     * @param handle     The handle on the file version.
+     * @param chunkStart The start position of the chunk in the file.
+     * @param chunkSize  The size of the chunk to read.
+     * @return The chunk data as a byte array.
+     * @throws IOException If the chunk cannot be read.
+     */
+    private byte[] readChunkData(FileHandle handle, long chunkStart, long chunkSize) throws IOException {
+        byte[] chunkData = chunkCache.get(handle.getServerPath(), handle.getVersion(), chunkStart, chunkSize);
+        if (chunkData != null) {
+            System.err.println("Chunk cache hit: " + handle.getServerPath() + " " + chunkStart + "+" + chunkSize);
+            return chunkData;
+        }
+        chunkData = readChunkData(handle.getChannel(), chunkStart, chunkSize);
+        chunkCache.put(handle.getServerPath(), handle.getVersion(), chunkStart, chunkData);
+        return chunkData;
+    }
+
     /**
      * Reads a chunk of data from a file located on the server.
-     * This method will read the chunk data based on the chunk start and chunk size.
+     * This method will read the chunk data based on the chunk start and chunk size,
+     * from the chunk cache or else through the cached handle of the file, caching the chunk read.
+     * Must be called with the file's read lock held.
      * 
      * @param serverPath    The path of the file on the server.
+     * @param version       The current version of the file.
      * @param chunkStart    The start position of the chunk in the file.
      * @param chunkSize     The size of the chunk to read.
      * @return              The chunk data as a byte array.
      */
-    private byte[] readChunkData(String serverPath, long chunkStart, long chunkSize) {
-        byte[] chunkData = new byte[(int) chunkSize];
-        try (RandomAccessFile file = new RandomAccessFile(Paths.get(serverPath).toFile(), "r")) {
-            file.seek(chunkStart);
-            file.read(chunkData, 0, (int) chunkSize);
+    private byte[] readChunkData(String serverPath, int version, long chunkStart, long chunkSize) {
+        try {
+            FileHandle handle = handleCache.acquire(serverPath, version);
+            try {
+                return readChunkData(handle, chunkStart, chunkSize);
+            } finally {
+                handle.release();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Error when reading file chunk from remote server");
             return null; // error
         }
-        return chunkData;
     }
 
     /**
-     * Writes a chunk of data to a file located on the server.
-     * This method will write the chunk data to the file based on the chunk start.
-     * 
-     * @param serverPath    The path of the file on the server.
-     * @param data          The chunk data to write.
-     * @param chunkStart    The start position of the chunk in the file.
+     * Commits a complete upload session by moving its staging file over the target file and
+     * publishing the new version. This is the only part of an upload that takes the file's write lock.
+     * A session without a version is given the next one here, under the write lock, so concurrent
+     * writers of a file commit in the order of their versions. A session whose reserved version
+     * has been overtaken by a later commit is discarded, as its content is already superseded.
+     *
+     * @param session The upload session whose chunks have all arrived.
+     * @return The version of the session.
+     * @throws IOException If the staging file cannot be moved into place.
      */
-    private void writeChunkData(String serverPath, byte[] data, long chunkStart) {
-        try (RandomAccessFile file = new RandomAccessFile(Paths.get(serverPath).toFile(), "rw")) {
-            file.seek(chunkStart);
-            file.write(data, 0, data.length);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Error when writing file chunk to remote server");
+    private int commitUpload(UploadSession session) throws IOException {
+        session.close();
+        String serverPath = session.getServerPath();
+        int version = session.getVersion();
+        Lock writeLock = writeLock(serverPath);
+        writeLock.lock();
+        try {
+            if (version <= 0) {
+                version = allocateVersion(serverPath);
+            }
+
+            ServerFile current = serverFileMap.get(serverPath);
+            if (current != null && current.getVersion() >= version) {
+                System.err.println("Upload of " + serverPath + " version " + version
+                    + " is superseded by version " + current.getVersion());
+                uploadSessions.remove(session.getId());
+                session.abort();
+                return version;
+            }
+            retireVersion(serverPath, current == null ? 0 : current.getVersion());
+            closeOpenSessions(serverPath);
+
+            /* keep the permissions of the file being replaced */
+            if (Files.exists(Paths.get(serverPath))) {
+                Files.setPosixFilePermissions(session.getStagingPath(),
+                    Files.getPosixFilePermissions(Paths.get(serverPath)));
+            }
+            Files.move(session.getStagingPath(), Paths.get(serverPath),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            serverFileMap.put(serverPath, new ServerFile(serverPath, version));
+            recordVersion(serverPath, version);
+            uploadSessions.remove(session.getId());
+            System.err.println("File is uploaded at: " 
+                + serverPath + " with version: " 
+                + version + " and size: " + session.getTotalSize());
+        } finally {
+            writeLock.unlock();
+        }
+        breakLeases(serverPath);
+        clearPendingVersion(serverPath, version);
+        return version;
+    }
+
+    /**
+     * Keeps a handle on the current version of a file before an upload replaces it, so that the
+     * downloads of that version already under way can finish reading it. The cached handle of
+     * the file is moved over if it has one. Must be called with the file's write lock held.
+     * Handles kept past their timeout are released here too, and the cached chunks of the file
+     * are dropped.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version about to be replaced.
+     */
+    private void retireVersion(String serverPath, int version) {
+        expireRetiredVersions();
+        chunkCache.invalidate(serverPath);
+        FileHandle handle = handleCache.invalidate(serverPath);
+        if (handle != null && (RETIRED_VERSION_TIMEOUT <= 0 || handle.getVersion() != version)) {
+            handle.release();
+            handle = null;
+        }
+        if (RETIRED_VERSION_TIMEOUT <= 0 || (handle == null && !Files.isRegularFile(Paths.get(serverPath)))) {
+            return;
+        }
+        try {
+            if (handle == null) {
+                handle = new FileHandle(serverPath, version,
+                    FileChannel.open(Paths.get(serverPath), StandardOpenOption.READ));
+            }
+            handle.setDeadline(System.currentTimeMillis() + RETIRED_VERSION_TIMEOUT);
+            FileHandle previous = retiredVersions.put(serverPath + "@" + version, handle);
+            if (previous != null) {
+                previous.release();
+            }
+        } catch (IOException e) {
+            System.err.println("Error when retiring " + serverPath + " version " + version + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Takes a reference on the handle kept on a replaced version of a file.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version requested.
+     * @return The handle, to be released by the caller, or null if the version is not kept.
+     */
+    private FileHandle acquireRetiredVersion(String serverPath, int version) {
+        FileHandle handle = retiredVersions.get(serverPath + "@" + version);
+        if (handle == null || handle.getDeadline() <= System.currentTimeMillis() || !handle.acquire()) {
+            return null;
+        }
+        return handle;
+    }
+
+    /**
+     * Releases the handles kept on replaced versions past their timeout. A handle still in use
+     * is closed once its last reader releases it.
+     */
+    private void expireRetiredVersions() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, FileHandle> entry : retiredVersions.entrySet()) {
+            if (entry.getValue().getDeadline() <= now && retiredVersions.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().release();
+            }
+        }
+    }
+
+    /**
+     * Allocates the next version of a file, above both its committed version and any version
+     * allocated before.
+     *
+     * @param serverPath The path of the file on the server.
+     * @return The allocated version.
+     */
+    private int allocateVersion(String serverPath) {
+        return allocatedVersions.compute(serverPath, (key, last) -> {
+            ServerFile serverFile = serverFileMap.get(key);
+            int current = serverFile == null ? 0 : serverFile.getVersion();
+            return Math.max(last == null ? 0 : last, current) + 1;
+        });
+    }
+
+    /**
+     * Grants a client a lease on the current version of a file. Must be called with the file's
+     * read lock held, so that the lease is recorded before any newer version can be published.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param path       The path of the file as the client named it.
+     * @param version    The version leased.
+     * @param clientId   The id of the client.
+     * @return true if the lease was granted; false if leases are disabled or the client is unknown.
+     */
+    private boolean grantLease(String serverPath, String path, int version, long clientId) {
+        if (LEASE_TERM <= 0 || !leaseClients.containsKey(clientId)) {
+            return false;
+        }
+        ServerFile lease = new ServerFile(path, version);
+        lease.setDeadline(System.currentTimeMillis() + LEASE_TERM);
+        leases.compute(serverPath, (key, holders) -> {
+            if (holders == null) {
+                holders = new HashMap<>();
+            }
+            holders.put(clientId, lease);
+            return holders;
+        });
+        return true;
+    }
+
+    /**
+     * Breaks all the leases on a file, after any break started by a reservation of the file, and
+     * returns once every holder has acknowledged or its lease has expired.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void breakLeases(String serverPath) {
+        CompletableFuture<Void> breaking = reservationBreaks.get(serverPath);
+        if (breaking != null) {
+            try {
+                breaking.join();
+            } catch (CompletionException e) {
+                e.printStackTrace();
+            }
+        }
+        breakHeldLeases(serverPath);
+    }
+
+    /**
+     * Breaks all the leases on a file, calling back their holders in parallel, and returns once
+     * every holder has acknowledged or its lease has expired. A holder that cannot be reached, or
+     * has been dropped or unregistered before, gets its lease waited out instead, so that it can
+     * no longer serve the old version by the time this returns.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void breakHeldLeases(String serverPath) {
+        Map<Long, ServerFile> holders = leases.remove(serverPath);
+        if (holders == null) {
+            return;
+        }
+
+        List<Future<?>> breaks = new ArrayList<>();
+        for (Map.Entry<Long, ServerFile> holder : holders.entrySet()) {
+            long clientId = holder.getKey();
+            ServerFile lease = holder.getValue();
+            LeaseCallback callback = leaseClients.get(clientId);
+            if (lease.getDeadline() <= System.currentTimeMillis()) {
+                continue;
+            }
+            if (callback == null) {
+                breaks.add(leaseBreakers.submit(() -> waitUntil(lease.getDeadline())));
+                continue;
+            }
+            breaks.add(leaseBreakers.submit(() -> {
+                try {
+                    callback.breakLease(lease.getPath());
+                } catch (Exception e) {
+                    System.err.println("Client " + clientId + " unreachable, waiting out its lease: " + e);
+                    leaseClients.remove(clientId, callback);
+                    waitUntil(lease.getDeadline());
+                }
+            }));
+        }
+        for (Future<?> pending : breaks) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        System.err.println("Broke " + breaks.size() + " leases on " + serverPath);
+    }
+
+    private static void waitUntil(long deadline) {
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                Thread.sleep(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks while a version of the file reserved by {@link #reserveVersion(long)} is pending,
+     * until it is committed or its marker expires. Must not be called with a file lock held.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void awaitPendingVersion(String serverPath) {
+        synchronized (pendingVersions) {
+            try {
+                ServerFile pending = pendingVersions.get(serverPath);
+                while (pending != null) {
+                    long remaining = pending.getDeadline() - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        System.err.println("Pending version expired: " + serverPath + " " + pending.getVersion());
+                        pendingVersions.remove(serverPath);
+                        return;
+                    }
+                    System.err.println("Waiting for pending version: " + serverPath + " " + pending.getVersion());
+                    pendingVersions.wait(remaining);
+                    pending = pendingVersions.get(serverPath);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Extends the marker of a pending version while its upload is making progress.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void refreshPendingVersion(String serverPath) {
+        synchronized (pendingVersions) {
+            ServerFile pending = pendingVersions.get(serverPath);
+            if (pending != null) {
+                pending.setDeadline(System.currentTimeMillis() + PENDING_VERSION_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Clears the pending version marker of a file once a version at least as new has been
+     * committed, and wakes up the opens waiting for it.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The version that has been committed.
+     */
+    private void clearPendingVersion(String serverPath, int version) {
+        synchronized (pendingVersions) {
+            ServerFile pending = pendingVersions.get(serverPath);
+            if (pending != null && pending.getVersion() <= version) {
+                pendingVersions.remove(serverPath);
+                pendingVersions.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Aborts the upload sessions that have not received any chunk for too long,
+     * deleting their staging files.
+     */
+    private void expireUploadSessions() {
+        long now = System.currentTimeMillis();
+        for (UploadSession session : uploadSessions.values()) {
+            if (now - session.getLastActivity() > UPLOAD_SESSION_TIMEOUT
+                && uploadSessions.remove(session.getId(), session)) {
+                System.err.println("Upload session " + session.getId() + " expired for: " + session.getServerPath());
+                session.abort();
+            }
         }
     }
 
@@ -297,35 +1146,158 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      * @return             The ServerFile object.
      */
     private ServerFile manageServerFile(String serverPath) {
-        ServerFile serverFile;
-        if (serverFileMap.containsKey(serverPath)) {
-            serverFile = serverFileMap.get(serverPath);
-        } else {
-            serverFile = new ServerFile(serverPath, 0);
-            serverFileMap.put(serverPath, serverFile);
+        return serverFileMap.computeIfAbsent(serverPath, key -> new ServerFile(key, 0));
+    }
+
+    /**
+     * Persists the new version of a file in the version journal. A failure is only logged: the
+     * version is already published and stays valid until a restart.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The committed version.
+     */
+    private void recordVersion(String serverPath, int version) {
+        try {
+            versionJournal.record(serverPath, version);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error when writing version journal in remote server");
+        }
+    }
+
+    /**
+     * Persists the deletion of a file in the version journal, with the last version allocated to
+     * it, so that the versions of a file created again at that path never go back after a restart.
+     * A failure is only logged.
+     *
+     * @param serverPath  The path of the file on the server.
+     * @param lastVersion The last version allocated to the file.
+     */
+    private void recordDeletion(String serverPath, int lastVersion) {
+        try {
+            versionJournal.remove(serverPath, lastVersion);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error when writing version journal in remote server");
+        }
+    }
+
+    /**
+     * Returns the path of the version journal: set with -Dserver.journal, or by default a file
+     * next to the root directory, where clients cannot reach it.
+     *
+     * @param rootdir The root directory of the server.
+     * @return The path of the journal file.
+     */
+    private static String journalPath(String rootdir) {
+        Path root = Paths.get(rootdir).toAbsolutePath().normalize();
+        return System.getProperty("server.journal", root + ".versions");
+    }
+
+    /**
+     * Creates the staging directory, deleting the staging files left by uploads that were under
+     * way when a previous run stopped; their sessions are gone, so they can never commit.
+     *
+     * @throws IOException If the staging directory cannot be created.
+     */
+    private void clearStagingDir() throws IOException {
+        Files.createDirectories(stagingDir);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(stagingDir)) {
+            for (Path leftover : leftovers) {
+                System.err.println("Deleting leftover staging file: " + leftover);
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /**
+     * Returns the read lock guarding a file.
+     *
+     * @param serverPath The path of the file on the server.
+     * @return The read lock of the file's stripe.
+     */
+    private Lock readLock(String serverPath) {
+        return lockOf(serverPath).readLock();
+    }
+
+    /**
+     * Returns the write lock guarding a file.
+     *
+     * @param serverPath The path of the file on the server.
+     * @return The write lock of the file's stripe.
+     */
+    private Lock writeLock(String serverPath) {
+        return lockOf(serverPath).writeLock();
+    }
+
+    /**
+     * Picks the lock stripe of a file from its normalized path, so that every spelling of a
+     * path maps to the same lock.
+     */
+    private ReentrantReadWriteLock lockOf(String serverPath) {
+        String key = Paths.get(serverPath).toAbsolutePath().normalize().toString();
+        return fileLocks[Math.floorMod(key.hashCode(), fileLocks.length)];
+    }
+
+    /**
+     * Returns the id of a file, handing out a new one the first time the file is looked up or
+     * opened after it was created.
+     *
+     * @param serverPath The path of the file on the server, inside the root directory.
+     * @return The id of the file.
+     */
+    private long fileIdOf(String serverPath) {
+        return fileIds.computeIfAbsent(serverPath, p -> {
+            long fileId = fileIdTag | (nextFileId.incrementAndGet() & 0xFFFFFFFFL);
+            filePaths.put(fileId, p);
+            return fileId;
+        });
+    }
+
+    /**
+     * Drops the id of a deleted file, so that the ids of deleted files do not pile up. Clients
+     * still holding the id look the path up again when the server rejects it.
+     *
+     * @param serverPath The path of the file on the server.
+     */
+    private void forgetFileId(String serverPath) {
+        Long fileId = fileIds.remove(serverPath);
+        if (fileId != null) {
+            filePaths.remove(fileId);
         }
-        return serverFile;
     }
 
     /**
-     * Checks if the file is in the root directory of the server.
+     * Resolves the id of a file to its path on the server.
+     *
+     * @param fileId The id of the file, as returned by {@link #lookupFile}.
+     * @return The path of the file on the server.
+     * @throws RemoteException If the id was not handed out by this server, so the client must look the path up again.
+     */
+    private String serverPathOf(long fileId) throws RemoteException {
+        String serverPath = filePaths.get(fileId);
+        if (serverPath == null) {
+            throw new RemoteException(UNKNOWN_FILE_ID + ": " + fileId);
+        }
+        return serverPath;
+    }
+
+    /**
+     * Checks if the file is in the root directory of the server, outside the staging directory.
      * 
      * @param path                  The path of the file to check.
      * @return                      true if the file is in the root directory; false otherwise.
      * @throws RemoteException      If a remote or network exception occurs.
      */
     private boolean inRootDir(String path) throws RemoteException {
-        readLock.lock();
         try {
             Path rootPath = Paths.get(rootdir).toAbsolutePath().normalize();
             Path inputPath = Paths.get(path).toAbsolutePath().normalize();
-            return inputPath.startsWith(rootPath);
+            return inputPath.startsWith(rootPath) && !inputPath.startsWith(stagingDir);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Error when checking file in root directory in remote server");
             return false;
-        } finally {
-            readLock.unlock();
         }
     }
 
@@ -398,7 +1370,7 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         }
     }
     
-    // Usage: java Server <port> <rootdir>
+    // Usage: java [-Dserver.frameport=<frameport>] Server <port> <rootdir>
     public static void main(String args[]) {
         System.err.println("Starting server...");
 
@@ -413,8 +1385,20 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         /* start server */
         try {
             Server server = new Server(port, rootdir);
-            Registry registry = LocateRegistry.createRegistry(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(
+                "Chunk cache: " + server.chunkCache.getHits() + " hits, " + server.chunkCache.getMisses()
+                + " misses, " + server.chunkCache.getSize() + " bytes\n" + TunedSocketFactory.stats())));
+
+            /* the registry shares the port of the server, which takes equal socket factories */
+            Registry registry = SOCKET_FACTORY == null ? LocateRegistry.createRegistry(port)
+                : LocateRegistry.createRegistry(port, SOCKET_FACTORY, SOCKET_FACTORY);
             registry.bind("RMIInterface", server);
+
+            /* serve the same operations over the framed binary transport, if asked to */
+            if (FRAME_PORT > 0) {
+                new FrameServer(server, FRAME_PORT).start();
+                System.err.println("Frame transport listening on port " + FRAME_PORT);
+            }
         } catch (Exception e) {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
@@ -10,6 +10,11 @@
  */
 public class ServerFile extends RPCFile {
 
+    /**
+     * The time until which a pending version marker is honored, in milliseconds.
+     */
+    private long deadline;
+
     /**
      * Constructs a new ServerFile with a specified path and version.
      *
@@ -29,4 +34,13 @@ public class ServerFile extends RPCFile {
     public ServerFile(String path) {
         super(path);
     }
+
+    /* Getters and setters for server file properties. */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
 }
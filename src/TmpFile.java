@@ -15,6 +15,13 @@ public class TmpFile extends RPCFile {
     private String permission;
     private RandomAccessFile raf;
     private int size;
+    private CacheFile cacheFile;
+
+    /**
+     * The content read from the cache's memory tier instead of the file, and the read position in it.
+     */
+    private byte[] memoryData;
+    private int position;
     
     /**
      * Constructs an TmpFile with a specified path, version, and size.
@@ -80,6 +87,30 @@ public class TmpFile extends RPCFile {
         this.permission = permission;
     }
 
+    public CacheFile getCacheFile() {
+        return cacheFile;
+    }
+
+    public void setCacheFile(CacheFile cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public byte[] getMemoryData() {
+        return memoryData;
+    }
+
+    public void setMemoryData(byte[] memoryData) {
+        this.memoryData = memoryData;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
     public RandomAccessFile getRaf() {
         return raf;
     }
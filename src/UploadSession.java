@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Represents an upload of a new file version in progress on the server. The chunks of the
+ * upload may arrive in any order and concurrently; each one is written at its offset into a
+ * staging file in the server's staging directory, through a single channel kept open for the whole
+ * session. Once every chunk has arrived, the server commits the session by moving the staging
+ * file over the target file.
+ *
+ * @author Zijie Huang
+ */
+public class UploadSession {
+
+    /**
+     * Upload session properties.
+     */
+    private final long id;
+    private final String serverPath;
+    private final int version;
+    private final long totalSize;
+    private final int chunkCount;
+    private final int chunkSize;
+    private final Path stagingPath;
+    private final FileChannel channel;
+    private final BitSet receivedChunks = new BitSet();
+    private volatile long lastActivity;
+
+    /**
+     * Constructs an UploadSession and creates its staging file in the staging directory.
+     *
+     * @param id         The id of the session.
+     * @param serverPath The path of the target file on the server.
+     * @param stagingDir The directory to create the staging file in, on the same filesystem as
+     *                   the target file.
+     * @param version    The version the file will have once committed, or 0 to have it assigned
+     *                   at commit.
+     * @param totalSize  The total size of the new file in bytes.
+     * @param chunkSize  The size of the chunks the file is uploaded in.
+     * @throws IOException If the staging file cannot be created.
+     */
+    public UploadSession(long id, String serverPath, Path stagingDir, int version, long totalSize, int chunkSize)
+        throws IOException {
+        this.id = id;
+        this.serverPath = serverPath;
+        this.version = version;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = Math.max(1, (int) ((totalSize + chunkSize - 1) / chunkSize));
+
+        Path target = Paths.get(serverPath).getFileName();
+        this.stagingPath = Files.createTempFile(stagingDir, target + "-", ".upload");
+        this.channel = FileChannel.open(stagingPath, StandardOpenOption.WRITE);
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes a chunk at its offset in the staging file and records its arrival.
+     *
+     * @param chunkNum The number of the chunk.
+     * @param data     The data of the chunk.
+     * @return true if this was the last missing chunk, so the session is ready to be committed;
+     *         false otherwise.
+     * @throws IOException If the chunk cannot be written.
+     */
+    public boolean writeChunk(int chunkNum, byte[] data) throws IOException {
+        if (chunkNum < 0 || chunkNum >= chunkCount) {
+            throw new IOException("Chunk " + chunkNum + " out of range for upload of " + serverPath);
+        }
+
+        lastActivity = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long offset = (long) chunkNum * chunkSize;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+
+        synchronized (this) {
+            boolean wasComplete = receivedChunks.cardinality() == chunkCount;
+            receivedChunks.set(chunkNum);
+            return !wasComplete && receivedChunks.cardinality() == chunkCount;
+        }
+    }
+
+    /**
+     * Closes the staging file so that it can be committed.
+     *
+     * @throws IOException If the staging file cannot be closed.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes and deletes the staging file of an abandoned session.
+     */
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(stagingPath);
+        } catch (IOException e) {
+            System.err.println("Error when aborting upload of " + serverPath + ": " + e.toString());
+        }
+    }
+
+    /* Getters for upload session properties. */
+    public long getId() {
+        return id;
+    }
+
+    public String getServerPath() {
+        return serverPath;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public Path getStagingPath() {
+        return stagingPath;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the versions of the files on the server, so that they survive restarts and the
+ * proxies' cached versions stay valid. Every committed version and every deletion is appended
+ * to a journal file as a small binary record and synced to disk; at startup the records are
+ * replayed, the last one of each path winning. Once the dead records outnumber the live ones,
+ * the journal is compacted by writing a snapshot of the live versions to a new file and renaming
+ * it over the old one.
+ *
+ * A deletion leaves a tombstone with the last version allocated to the file, which compaction
+ * keeps. A file created again after a restart then resumes its versions above the old ones,
+ * instead of reusing versions that proxies may still have cached with the old content.
+ *
+ * @author Zijie Huang
+ */
+public class VersionJournal {
+
+    /**
+     * The version recorded for a deleted file whose last version was 0. The tombstone of a file
+     * whose last version was v is recorded as DELETED - v.
+     */
+    private static final int DELETED = -1;
+
+    /**
+     * The number of records below which the journal is never compacted.
+     */
+    private static final long MIN_COMPACT_RECORDS = 100_000;
+
+    /**
+     * Journal properties.
+     */
+    private final Path journalPath;
+    private final Map<String, ServerFile> serverFileMap;
+    private final Map<String, Integer> deletedVersions = new HashMap<>();
+    private FileChannel channel;
+    private long records;
+
+    /**
+     * Constructs a VersionJournal for the given versions, which it keeps persisted.
+     *
+     * @param journalPath   The path of the journal file.
+     * @param serverFileMap The versions of the server, loaded into and compacted from.
+     */
+    public VersionJournal(String journalPath, Map<String, ServerFile> serverFileMap) {
+        this.journalPath = Paths.get(journalPath);
+        this.serverFileMap = serverFileMap;
+    }
+
+    /**
+     * Replays the journal into the version map and opens it for appending. A record cut short
+     * by a crash is dropped, and the journal is compacted if it is mostly dead records.
+     *
+     * @throws IOException If the journal cannot be read or opened.
+     */
+    public synchronized void load() throws IOException {
+        long validLength = 0;
+        if (Files.exists(journalPath)) {
+            try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalPath.toFile()), 1 << 16))) {
+                byte[] pathBytes = new byte[256];
+                while (true) {
+                    int length = in.readUnsignedShort();
+                    if (pathBytes.length < length) {
+                        pathBytes = new byte[length];
+                    }
+                    in.readFully(pathBytes, 0, length);
+                    int version = in.readInt();
+
+                    String serverPath = new String(pathBytes, 0, length, StandardCharsets.UTF_8);
+                    if (version <= DELETED) {
+                        serverFileMap.remove(serverPath);
+                        deletedVersions.put(serverPath, DELETED - version);
+                    } else {
+                        serverFileMap.put(serverPath, new ServerFile(serverPath, version));
+                        deletedVersions.remove(serverPath);
+                    }
+                    validLength += 2 + length + 4;
+                    records++;
+                }
+            } catch (EOFException e) {
+                /* end of the journal, or a record cut short */
+            }
+        }
+        System.err.println("Loaded " + serverFileMap.size() + " file versions and " + deletedVersions.size()
+            + " deletions from " + records + " journal records");
+
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        compactIfNeeded();
+    }
+
+    /**
+     * Records the committed version of a file.
+     *
+     * @param serverPath The path of the file on the server.
+     * @param version    The committed version.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void record(String serverPath, int version) throws IOException {
+        append(serverPath, version);
+        deletedVersions.remove(serverPath);
+        compactIfNeeded();
+    }
+
+    /**
+     * Records the deletion of a file as a tombstone.
+     *
+     * @param serverPath  The path of the file on the server.
+     * @param lastVersion The last version allocated to the file.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void remove(String serverPath, int lastVersion) throws IOException {
+        append(serverPath, DELETED - lastVersion);
+        deletedVersions.put(serverPath, lastVersion);
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the last versions of the deleted files, from which their versions resume if they
+     * are created again.
+     *
+     * @return The last version allocated to each deleted file, keyed by server path.
+     */
+    public synchronized Map<String, Integer> getDeletedVersions() {
+        return new HashMap<>(deletedVersions);
+    }
+
+    private void append(String serverPath, int version) throws IOException {
+        byte[] pathBytes = serverPath.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(2 + pathBytes.length + 4);
+        record.putShort((short) pathBytes.length);
+        record.put(pathBytes);
+        record.putInt(version);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        records++;
+    }
+
+    /**
+     * Rewrites the journal as a snapshot of the live versions and the tombstones once most of its
+     * records are dead. The snapshot is synced before it replaces the journal, so a crash leaves
+     * one or the other.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (records < MIN_COMPACT_RECORDS || records < 2L * (serverFileMap.size() + deletedVersions.size())) {
+            return;
+        }
+
+        Path tmpPath = Paths.get(journalPath + ".tmp");
+        long snapshotRecords = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmpPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            for (ServerFile serverFile : serverFileMap.values()) {
+                if (serverFile.getVersion() == 0) {
+                    continue; // the default for files never written
+                }
+                writeRecord(out, serverFile.getPath(), serverFile.getVersion());
+                snapshotRecords++;
+            }
+            for (Map.Entry<String, Integer> deleted : deletedVersions.entrySet()) {
+                writeRecord(out, deleted.getKey(), DELETED - deleted.getValue());
+                snapshotRecords++;
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        channel.close();
+        Files.move(tmpPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        System.err.println("Compacted version journal from " + records + " to " + snapshotRecords + " records");
+        records = snapshotRecords;
+    }
+
+    private static void writeRecord(DataOutputStream out, String serverPath, int version) throws IOException {
+        byte[] pathBytes = serverPath.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(pathBytes.length);
+        out.write(pathBytes);
+        out.writeInt(version);
+    }
+}
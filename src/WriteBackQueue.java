@@ -0,0 +1,281 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue of file versions written by clients of the proxy but not yet uploaded to the
+ * server. It is used in write-back mode, where close reserves a version on the server, installs
+ * the new version in the cache and returns without uploading it. A background uploader drains the queue in order. Successive versions of
+ * the same path are coalesced, so only the newest one is sent. The queue is persisted to a file
+ * in the cache directory after every change, and reloaded when the proxy restarts.
+ *
+ * Every queued version stays pinned in the cache until it has been uploaded or superseded.
+ * A failed upload is retried a bounded number of times, after which the version is dropped
+ * like a failed write-through close, so that an unreachable server does not hold the queue
+ * and the clients waiting on it forever.
+ *
+ * @author Zijie Huang
+ */
+public class WriteBackQueue {
+
+    /**
+     * The delay before retrying a failed upload, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * The number of times a version is uploaded before it is dropped, set with
+     * -Dproxy.writebackattempts.
+     */
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("proxy.writebackattempts", 10));
+
+    /**
+     * The longest a flush waits for the versions of a path to be uploaded, in milliseconds,
+     * set with -Dproxy.flushtimeout.
+     */
+    private static final long FLUSH_TIMEOUT = Long.getLong("proxy.flushtimeout", 30000);
+
+    /**
+     * The cache holding the queued versions.
+     */
+    private final Cache cache;
+
+    /**
+     * The file the queue is persisted to.
+     */
+    private final Path queuePath;
+
+    /**
+     * The server to upload to.
+     */
+    private final String serverip;
+    private final int port;
+
+    /**
+     * The queued versions keyed by their original path, oldest first.
+     */
+    private final LinkedHashMap<String, CacheFile> queue = new LinkedHashMap<>();
+
+    /**
+     * The original path of the version being uploaded, or null.
+     */
+    private String uploading;
+
+    /**
+     * Constructs a WriteBackQueue persisted at the specified path.
+     *
+     * @param cache     The cache holding the queued versions.
+     * @param queuePath The path of the file the queue is persisted to.
+     * @param serverip  The IP address of the server.
+     * @param port      The port number of the server.
+     */
+    public WriteBackQueue(Cache cache, String queuePath, String serverip, int port) {
+        this.cache = cache;
+        this.queuePath = Paths.get(queuePath);
+        this.serverip = serverip;
+        this.port = port;
+    }
+
+    /**
+     * Checks whether a previous run left versions in a persisted queue, which must be uploaded
+     * even if write-back is now disabled.
+     *
+     * @param queuePath The path of the file the queue is persisted to.
+     * @return true if the persisted queue holds any version; false otherwise.
+     */
+    public static boolean hasQueued(String queuePath) {
+        if (!Files.exists(Paths.get(queuePath))) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(Paths.get(queuePath)))) {
+            return in.readInt() > 0;
+        } catch (IOException e) {
+            System.err.println("I/O error when reading write-back queue: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Reloads the versions left in the persisted queue by a previous run, registers them in the
+     * cache, and starts the background uploader.
+     */
+    public void start() {
+        if (Files.exists(queuePath)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(queuePath))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String originPath = in.readUTF();
+                    String cachePath = in.readUTF();
+                    int version = in.readInt();
+                    if (!Files.exists(Paths.get(cachePath))) {
+                        System.err.println("Lost queued version: " + cachePath);
+                        continue;
+                    }
+                    CacheFile cacheFile = new CacheFile(cachePath, version, (int) Files.size(Paths.get(cachePath)));
+                    cacheFile.incrementRefCount();
+                    cache.put(cacheFile);
+                    queue.put(originPath, cacheFile);
+                    System.err.println("Recovered queued version: " + cachePath);
+                }
+            } catch (IOException e) {
+                System.err.println("I/O error when loading write-back queue: " + e.toString());
+            }
+        }
+
+        Thread uploader = new Thread(this::drain, "write-back");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /**
+     * Queues a new version for upload, replacing any older version of the same path that has
+     * not started uploading yet. The queue takes over one pin of the given cache file.
+     *
+     * @param originPath The original path of the file.
+     * @param cacheFile  The pinned cache file of the new version.
+     */
+    public synchronized void enqueue(String originPath, CacheFile cacheFile) {
+        CacheFile replaced = queue.remove(originPath);
+        if (replaced != null && !originPath.equals(uploading)) {
+            System.err.println("Coalescing queued version: " + replaced.getPath());
+            cache.decrementRefCount(replaced);
+        }
+        queue.put(originPath, cacheFile);
+        persist();
+        notifyAll();
+    }
+
+    /**
+     * Returns the newest version of a path waiting to be uploaded.
+     *
+     * @param originPath The original path of the file.
+     * @return The cache file of the queued version, or null if none is queued.
+     */
+    public synchronized CacheFile getPending(String originPath) {
+        return queue.get(originPath);
+    }
+
+    /**
+     * Blocks until no version of a path is queued or being uploaded, or the flush timeout runs
+     * out. This is used before operations that go straight to the server, such as deleting the file.
+     *
+     * @param originPath The original path of the file.
+     * @return true if no version of the path is left to upload; false if the wait timed out or
+     *         was interrupted.
+     */
+    public synchronized boolean flush(String originPath) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT);
+        try {
+            while (queue.containsKey(originPath) || originPath.equals(uploading)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    System.err.println("Timed out waiting for the write-back of " + originPath);
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Uploads the queued versions one at a time, forever.
+     */
+    private void drain() {
+        RPCHandler rpcHandler = new RPCHandler(serverip, port);
+        CacheFile retrying = null;
+        int attempts = 0;
+        while (true) {
+            String originPath;
+            CacheFile cacheFile;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Map.Entry<String, CacheFile> head = queue.entrySet().iterator().next();
+                originPath = head.getKey();
+                cacheFile = head.getValue();
+                uploading = originPath;
+            }
+            attempts = cacheFile == retrying ? attempts + 1 : 1;
+            retrying = cacheFile;
+
+            boolean uploaded = rpcHandler.upload(serverip, port, originPath, cacheFile.getPath(), cacheFile.getVersion()) >= 0;
+            if (uploaded) {
+                System.err.println("Write-back of " + cacheFile.getPath() + " done");
+            } else {
+                System.err.println("Error when writing back " + cacheFile.getPath());
+            }
+
+            synchronized (this) {
+                uploading = null;
+                if (uploaded) {
+                    /* a newer version may have been queued in the meantime */
+                    if (queue.get(originPath) == cacheFile) {
+                        queue.remove(originPath);
+                        persist();
+                    }
+                    cache.decrementRefCount(cacheFile);
+                } else if (queue.get(originPath) != cacheFile) {
+                    cache.decrementRefCount(cacheFile);
+                } else if (attempts >= MAX_ATTEMPTS) {
+                    /* the write is lost, but the queue and the clients waiting on it carry on */
+                    System.err.println("Giving up writing back " + cacheFile.getPath()
+                        + " after " + attempts + " attempts, dropping the write");
+                    queue.remove(originPath);
+                    persist();
+                    cache.decrementRefCount(cacheFile);
+                    cache.discard(cacheFile);
+                }
+                notifyAll();
+            }
+
+            if (!uploaded && attempts < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queue to its file and syncs it to disk, replacing the previous copy atomically.
+     */
+    private void persist() {
+        try {
+            Path tmp = queuePath.resolveSibling(queuePath.getFileName() + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                out.writeInt(queue.size());
+                for (Map.Entry<String, CacheFile> entry : queue.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue().getPath());
+                    out.writeInt(entry.getValue().getVersion());
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp, queuePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("I/O error when persisting write-back queue: " + e.toString());
+        }
+    }
+}
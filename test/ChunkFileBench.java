@@ -0,0 +1,203 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Compares the encodings of a ChunkFile reply: the default serialization it used to have, its
+ * externalized form over RMI, and the frame transport's codec. For each payload size it prints
+ * the bytes on the wire and the encode and decode throughput. Every RMI call marshals its
+ * result on a fresh object stream, so each encode here uses a fresh stream too.
+ *
+ * The old format comes from test/baseline, unchanged copies of RPCFile and ChunkFile from before
+ * this series. They share their names with the current classes, so they are loaded by a class
+ * loader of their own and serialize exactly as the old proxy and server did.
+ *
+ * Usage, from the root of the repository:
+ *   javac -d /tmp/bench/baseline test/baseline/*.java
+ *   javac -d /tmp/bench src/RPCFile.java src/ChunkFile.java src/FrameCodec.java test/ChunkFileBench.java
+ *   java -cp /tmp/bench ChunkFileBench /tmp/bench/baseline [seconds per case]
+ *
+ * @author Zijie Huang
+ */
+public class ChunkFileBench {
+
+    private static final int[] PAYLOAD_SIZES = {0, 4 * 1024, 300 * 1024};
+
+    private static volatile Object sink;
+
+    /**
+     * An encoding under test.
+     */
+    private interface Codec {
+        byte[] encode(Object o) throws Exception;
+        Object decode(byte[] bytes) throws Exception;
+    }
+
+    /**
+     * Java serialization, resolving classes through the given loader.
+     */
+    private static final class Serialization implements Codec {
+        private final ClassLoader loader;
+
+        Serialization(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public byte[] encode(Object o) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(o);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+            }) {
+                return in.readObject();
+            }
+        }
+    }
+
+    private static final Codec FRAME = new Codec() {
+        @Override
+        public byte[] encode(Object o) {
+            ChunkFile chunkFile = (ChunkFile) o;
+            ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.sizeOf(chunkFile));
+            FrameCodec.putChunkFile(buffer, chunkFile);
+            return buffer.array();
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            return FrameCodec.getChunkFile(ByteBuffer.wrap(bytes));
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java ChunkFileBench <baseline classes> [seconds per case]");
+            System.exit(1);
+        }
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+
+        URL baselineUrl = Paths.get(args[0]).toUri().toURL();
+        ClassLoader baseline = new URLClassLoader(new URL[]{baselineUrl}, ClassLoader.getPlatformClassLoader());
+        Class<?> oldChunkFile = Class.forName("ChunkFile", true, baseline);
+        if (oldChunkFile == ChunkFile.class) {
+            throw new IllegalStateException("The baseline ChunkFile resolved to the current one");
+        }
+        Constructor<?> oldConstructor =
+            oldChunkFile.getConstructor(String.class, byte[].class, int.class, int.class, boolean.class);
+        Codec oldSerialization = new Serialization(baseline);
+        Codec serialization = new Serialization(ChunkFileBench.class.getClassLoader());
+
+        System.out.printf("%-12s %-14s %10s %14s %14s%n", "payload", "format", "bytes", "encode ops/s", "decode ops/s");
+
+        for (int size : PAYLOAD_SIZES) {
+            byte[] data = size == 0 ? null : new byte[size];
+
+            /* before: downloadChunk echoed the path the client asked for */
+            Object old = oldConstructor.newInstance("dir/subdir/file.txt", data, 3, 0, size == 0);
+            oldChunkFile.getMethod("setTotalSize", long.class).invoke(old, (long) size);
+            oldChunkFile.getMethod("setStatusCode", int.class).invoke(old, 0);
+
+            /* after: the file is named by id and session, and the path is not sent back */
+            ChunkFile chunkFile = new ChunkFile(null, data, 3, 0, size == 0);
+            chunkFile.setTotalSize(size);
+            chunkFile.setLeaseTerm(10_000);
+            chunkFile.setFileId(0x1234_5678_0000_0001L);
+            chunkFile.setSessionId(0x0fed_cba9_8765_4321L);
+
+            String payload = size == 0 ? "none" : (size / 1024) + " KB";
+            run(payload, "serialized", oldSerialization, old, seconds);
+            run(payload, "externalized", serialization, chunkFile, seconds);
+            run(payload, "frame", FRAME, chunkFile, seconds);
+        }
+    }
+
+    /**
+     * Measures one encoding of one object and prints a row of results.
+     */
+    private static void run(String payload, String format, Codec codec, Object o, double seconds) throws Exception {
+        byte[] bytes = codec.encode(o);
+        check(codec.decode(bytes), o);
+
+        /* warm up before timing */
+        measure(() -> sink = codec.encode(o), seconds / 2);
+        measure(() -> sink = codec.decode(bytes), seconds / 2);
+        double encodes = measure(() -> sink = codec.encode(o), seconds);
+        double decodes = measure(() -> sink = codec.decode(bytes), seconds);
+
+        System.out.printf("%-12s %-14s %10d %14.0f %14.0f%n", payload, format, bytes.length, encodes, decodes);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs a task repeatedly for the given time.
+     *
+     * @return The number of runs per second.
+     */
+    private static double measure(Task task, double seconds) throws Exception {
+        long budget = (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long elapsed;
+        do {
+            for (int i = 0; i < 64; i++) {
+                task.run();
+            }
+            runs += 64;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budget);
+        return runs * 1e9 / elapsed;
+    }
+
+    /**
+     * Checks that a decoded reply matches the encoded one, so that no format is timed while broken.
+     */
+    private static void check(Object decoded, Object expected) throws Exception {
+        if (expected instanceof ChunkFile) {
+            ChunkFile a = (ChunkFile) decoded;
+            ChunkFile b = (ChunkFile) expected;
+            boolean same = a.getVersion() == b.getVersion() && a.getTotalSize() == b.getTotalSize()
+                && a.getLeaseTerm() == b.getLeaseTerm() && a.getFileId() == b.getFileId()
+                && a.getSessionId() == b.getSessionId() && a.isLastChunk() == b.isLastChunk()
+                && a.isValid() == b.isValid() && a.isExsit() == b.isExsit()
+                && Arrays.equals(a.getData(), b.getData());
+            if (!same) {
+                throw new IllegalStateException("Decoded ChunkFile differs from the encoded one");
+            }
+        } else {
+            Class<?> c = expected.getClass();
+            boolean same = decoded.getClass() == c;
+            for (String getter : new String[]{"getPath", "getVersion", "getTotalSize", "getStatusCode",
+                    "getChunkNumber", "isLastChunk", "isValid", "isExsit"}) {
+                same = same && c.getMethod(getter).invoke(decoded).equals(c.getMethod(getter).invoke(expected));
+            }
+            same = same && Arrays.equals((byte[]) c.getMethod("getData").invoke(decoded),
+                (byte[]) c.getMethod("getData").invoke(expected));
+            if (!same) {
+                throw new IllegalStateException("Decoded baseline ChunkFile differs from the encoded one");
+            }
+        }
+    }
+}